@@ -1,10 +1,18 @@
 import java.io.File;
 
 import audio.JavaSoundRecorder;
+import audio.WavReplayLine;
 import fingerprint.AnchorExtractor;
 import fingerprint.Extractor;
+import fingerprint.FrameGate;
 import fingerprint.RangeExtractor;
+import simpledb.BufferPool;
 import simpledb.Database;
+import simpledb.ReplacementPolicy;
+import songs.LiveMatch;
+import songs.MonitorReport;
+import songs.QueryStress;
+import songs.RecognitionServer;
 import songs.SongLibrary;
 
 public class Main {
@@ -17,14 +25,47 @@ public class Main {
     // record duration, in milliseconds
     private static final long RECORD_TIME = 10000;  // 10 seconds 
     
+    // match straight off the microphone instead of the sample folder
+    private static final boolean USE_LIVE_MICROPHONE = false;
+    // replay the sample folder through the live path, in real time, to measure time-to-answer
+    private static final boolean SIMULATE_LIVE = false;
+    // treat each sample file as a long broadcast and log every song played in it
+    private static final boolean MONITOR_BROADCAST = false;
+    // run the sample folder as concurrent queries from 1, 2, 4, ... STRESS_THREADS threads
+    private static final boolean STRESS_TEST = false;
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_QUERIES = 200;
+    // serve matches over HTTP on localhost (POST a WAV to /match, GET /stats) until killed
+    private static final boolean SERVE = false;
+    private static final int SERVER_PORT = 8080;
+    private static final int SERVER_THREADS = 16;
+    // open the library in the working directory as a read-only replica: no syncing with
+    // the song folder, no writes, and queries skip locking (see SongLibrary.openReadOnly)
+    private static final boolean READ_ONLY = false;
+    
     private static final boolean USE_RANGE_EXTRACTION = true;
     private static final boolean USE_PARALLEL_ANCHOR = false;
+    // skip silent and noise-like frames when extracting; changing this rebuilds the fingerprint cache
+    private static final boolean USE_FRAME_GATE = true;
+    // match songs new to the song folder against the library and record duplicates as aliases
+    private static final boolean DETECT_DUPLICATES = false;
+    // scale fully tallied scores by each track's distinct hash count (see Extractor.normalizeScores)
+    private static final boolean NORMALIZE_SCORES = false;
     // 2, 3, 5, 10 work best on my (slow) computer
     private static final int NUM_THREADS = 2;
+    // how the buffer pool picks the page to evict; MRU is good for range extraction and
+    // parallel anchor extraction, which keep rescanning runs of leaves bigger than the pool
+    private static final ReplacementPolicy.Type BUFFER_POLICY =
+            USE_RANGE_EXTRACTION || USE_PARALLEL_ANCHOR ? ReplacementPolicy.Type.MRU : ReplacementPolicy.Type.CLOCK;
+    // memory for the buffer pool's pages; it can be changed later with setBudgetBytes
+    private static final long BUFFER_POOL_BYTES = BufferPool.DEFAULT_BUDGET_BYTES;
+    // bytes of off-heap memory for the pages the buffer pool evicts, 0 for none; to index
+    // a big library, keep BUFFER_POOL_BYTES small and give the memory to the arena
+    // (raising -XX:MaxDirectMemorySize if it's bigger than the heap)
+    private static final long FRAME_ARENA_BYTES = 0;
 
     public static void main(String[] args) throws Exception {//IOException, NoSuchElementException, DbException, TransactionAbortedException {        
-        // MRU good for range extraction and parallel anchor extraction
-        Database.getBufferPool().setMRU(USE_RANGE_EXTRACTION || !USE_RANGE_EXTRACTION && USE_PARALLEL_ANCHOR);
+        Database.resetBufferPool(BufferPool.pagesFor(BUFFER_POOL_BYTES), BUFFER_POLICY, FRAME_ARENA_BYTES);
         
         int earlyReturnThreshold;
         int competitorRatio;
@@ -60,8 +101,24 @@ public class Main {
         } else {
             extractor = new AnchorExtractor(earlyReturnThreshold, competitorRatio, USE_PARALLEL_ANCHOR, NUM_THREADS);
         }
+        extractor.setFrameGate(USE_FRAME_GATE ? new FrameGate() : FrameGate.disabled());
+        extractor.setNormalizeScores(NORMALIZE_SCORES);
         
-        SongLibrary songLibrary = new SongLibrary(KNOWN_SONG_FOLDER, extractor);
+        SongLibrary songLibrary = READ_ONLY ? SongLibrary.openReadOnly(extractor)
+                : new SongLibrary(KNOWN_SONG_FOLDER, extractor, true, DETECT_DUPLICATES);
+        if (USE_LIVE_MICROPHONE) {
+            System.out.println("Listening...");
+            System.out.println(songLibrary.matchLive(recorder.openLine(), RECORD_TIME));
+            return;
+        }
+        if (SERVE) {
+            new RecognitionServer(songLibrary, SERVER_PORT, SERVER_THREADS).start();
+            return;
+        }
+        if (STRESS_TEST) {
+            new QueryStress(songLibrary, SAMPLE_SONG_FOLDER).runScaling(STRESS_THREADS, STRESS_QUERIES);
+            return;
+        }
         long totalDuration = 0;
         int count = 0;
         for (File sampleSong : SAMPLE_SONG_FOLDER.listFiles()){
@@ -70,6 +127,24 @@ public class Main {
                 continue;
             }
             System.out.println("Matching "+sampleSong+"...");
+            if (MONITOR_BROADCAST) {
+                MonitorReport report = songLibrary.monitor(sampleSong);
+                if (report != null) {
+                    System.out.println(report);
+                    totalDuration += report.getElapsedMillis();
+                    count++;
+                }
+                continue;
+            }
+            if (SIMULATE_LIVE) {
+                WavReplayLine line = new WavReplayLine(sampleSong, true);
+                line.open();
+                LiveMatch match = songLibrary.matchLive(line, RECORD_TIME);
+                System.out.println(match);
+                totalDuration += match.getTimeToAnswerMillis();
+                count++;
+                continue;
+            }
             long duration = songLibrary.matchSong(sampleSong);
             // error reading in sample
             if (duration == -1) {
@@ -82,5 +157,14 @@ public class Main {
         
         
         System.out.println("\n\nOverall avg matching duration: "+1.0*totalDuration/count+" ms");
+        if (songLibrary.getMatchMetrics().getTotal().getCount() > 0) {
+            System.out.println("Latency by stage (ms):\n"+songLibrary.getMatchMetrics());
+        }
+        System.out.println("Buffer pool "+Database.getBufferPool().getReplacementPolicy());
+        System.out.println(Database.getBufferPool().getPageWriter());
+        System.out.println("Read ahead "+Database.getBufferPool().getPrefetchedPages()+" pages");
+        if (Database.getBufferPool().getFrameArena() != null) {
+            System.out.println(Database.getBufferPool().getFrameArena());
+        }
     }
 }
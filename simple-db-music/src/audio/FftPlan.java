@@ -0,0 +1,122 @@
+package audio;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.musicg.dsp.WindowFunction;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * Everything needed to turn frames of one size into FFT magnitudes, set up once and
+ * reused: a planned JTransforms FFT, the Hamming window table and a scratch buffer.
+ * Plans hold scratch state, so each thread gets its own through forThisThread; the
+ * window tables are read-only and shared by all threads.
+ * <p>
+ * The magnitudes are the same as musicg's FastFourierTransform.getMagnitudes (which
+ * its Spectrogram uses), computed without allocating per frame: the frame of n real
+ * samples is transformed as n/2 interleaved complex values, and the magnitudes of
+ * the first n/4 bins are kept.
+ */
+public class FftPlan {
+
+    private static final ThreadLocal<Map<Integer, FftPlan>> PLANS = new ThreadLocal<Map<Integer, FftPlan>>() {
+        @Override
+        protected Map<Integer, FftPlan> initialValue() {
+            return new HashMap<Integer, FftPlan>();
+        }
+    };
+    private static final ConcurrentMap<Integer, double[]> WINDOWS = new ConcurrentHashMap<Integer, double[]>();
+
+    private final int frameSize;
+    private final DoubleFFT_1D fft;
+    private final double[] window;
+    private final double[] scratch;
+
+    private FftPlan(int frameSize) {
+        if (frameSize <= 0 || frameSize % 4 != 0) {
+            throw new IllegalArgumentException("frame size must be a positive multiple of 4, not " + frameSize);
+        }
+        this.frameSize = frameSize;
+        this.fft = new DoubleFFT_1D(frameSize / 2);
+        this.window = windowFor(frameSize);
+        this.scratch = new double[frameSize];
+    }
+
+    /**
+     * @return the calling thread's plan for frames of frameSize samples, creating it
+     * on first use
+     */
+    public static FftPlan forThisThread(int frameSize) {
+        Map<Integer, FftPlan> plans = PLANS.get();
+        FftPlan plan = plans.get(frameSize);
+        if (plan == null) {
+            plan = new FftPlan(frameSize);
+            plans.put(frameSize, plan);
+        }
+        return plan;
+    }
+
+    private static double[] windowFor(int frameSize) {
+        double[] window = WINDOWS.get(frameSize);
+        if (window == null) {
+            WindowFunction windowFunction = new WindowFunction();
+            windowFunction.setWindowType("Hamming");
+            window = windowFunction.generate(frameSize);
+            double[] existing = WINDOWS.putIfAbsent(frameSize, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        return window;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return the number of magnitudes per frame
+     */
+    public int getNumBins() {
+        return frameSize / 4;
+    }
+
+    /**
+     * Windows samples[off, off + frameSize) and writes the magnitudes of its
+     * spectrum into out, which must hold getNumBins() values.
+     */
+    public void magnitudes(short[] samples, int off, double[] out) {
+        for (int n = 0; n < frameSize; n++) {
+            scratch[n] = samples[off + n] * window[n];
+        }
+        fft.complexForward(scratch);
+        int numBins = getNumBins();
+        for (int k = 0; k < numBins; k++) {
+            double re = scratch[2 * k];
+            double im = scratch[2 * k + 1];
+            out[k] = Math.sqrt(re * re + im * im);
+        }
+    }
+
+    /**
+     * Computes the magnitudes of every whole frame in samples; any trailing partial
+     * frame is dropped, as musicg's Spectrogram does.
+     */
+    public double[][] spectrogram(short[] samples) {
+        return spectrogram(samples, 0, samples.length / frameSize);
+    }
+
+    /**
+     * Computes the magnitudes of frames [fromFrame, toFrame) of samples.
+     */
+    public double[][] spectrogram(short[] samples, int fromFrame, int toFrame) {
+        double[][] frames = new double[toFrame - fromFrame][getNumBins()];
+        for (int i = 0; i < frames.length; i++) {
+            magnitudes(samples, (fromFrame + i) * frameSize, frames[i]);
+        }
+        return frames;
+    }
+}
@@ -77,6 +77,21 @@ public class JavaSoundRecorder {
         }
     }
  
+    /**
+     * Opens the microphone without recording to a file, for callers that consume
+     * the line directly (see songs.LiveRecognizer). The caller starts and closes it.
+     */
+    public TargetDataLine openLine() throws LineUnavailableException {
+        AudioFormat format = getAudioFormat();
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+        if (!AudioSystem.isLineSupported(info)) {
+            throw new LineUnavailableException("Line not supported");
+        }
+        TargetDataLine micLine = (TargetDataLine) AudioSystem.getLine(info);
+        micLine.open(format);
+        return micLine;
+    }
+
     /**
      * Closes the target data line to finish capturing and recording
      */
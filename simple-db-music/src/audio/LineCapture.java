@@ -0,0 +1,60 @@
+package audio;
+
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Pumps audio from a TargetDataLine into a SampleRingBuffer on its own thread, so
+ * the matcher never waits on the line and the line never waits on the matcher.
+ */
+public class LineCapture implements Runnable {
+
+    // bytes per read from the line; about 23 ms of 16-bit mono audio at 44.1 kHz
+    private static final int READ_SIZE = 2048;
+
+    private final TargetDataLine line;
+    private final SampleRingBuffer ring;
+    private volatile boolean running = true;
+    private volatile boolean finished = false;
+
+    public LineCapture(TargetDataLine line, SampleRingBuffer ring) {
+        this.line = line;
+        this.ring = ring;
+    }
+
+    @Override
+    public void run() {
+        int frameSize = Math.max(2, line.getFormat().getFrameSize());
+        byte[] bytes = new byte[READ_SIZE - READ_SIZE % frameSize];
+        short[] samples = new short[bytes.length / 2];
+        line.start();
+        try {
+            while (running) {
+                int numBytes = line.read(bytes, 0, bytes.length);
+                // a line only comes back empty-handed once it has been stopped or has run dry
+                if (numBytes <= 0) {
+                    break;
+                }
+                int numSamples = ReadAudio.toSamples(bytes, 0, numBytes, samples);
+                ring.write(samples, 0, numSamples);
+            }
+        } finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Stops capturing and closes the line.
+     */
+    public void stop() {
+        running = false;
+        line.stop();
+        line.close();
+    }
+
+    /**
+     * @return whether the capture loop has exited, i.e. no more samples will arrive
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+}
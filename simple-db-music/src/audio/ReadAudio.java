@@ -7,6 +7,8 @@ import com.musicg.wave.extension.Spectrogram;
 
 public class ReadAudio {
 	public static final int SAMPLE_RATE = 44100;
+	// samples per spectrogram frame, matching musicg's Spectrogram defaults (no overlap)
+	public static final int FFT_SAMPLE_SIZE = Spectrogram.SPECTROGRAM_DEFAULT_FFT_SAMPLE_SIZE;
 	
     private static final int[] FREQ_RANGES = new int[] {12, 24, 36, 48, 60, 72, 100};
 	
@@ -14,22 +16,17 @@ public class ReadAudio {
 	    try {
 	        System.out.println("reading in song "+waveName);
 	        //System.out.println("orig length in s: "+wave.length());
-	        Resampler resampler = new Resampler();
-	        int sourceRate = wave.getWaveHeader().getSampleRate();
-	        byte[] resampledBytes = resampler.reSample(wave.getBytes(), wave.getWaveHeader().getBitsPerSample(), 
-	                sourceRate, SAMPLE_RATE);
-	        WaveHeader resampledHeader = wave.getWaveHeader();
-	        resampledHeader.setSampleRate(SAMPLE_RATE);
-	        Wave resampledWave = new Wave(resampledHeader, resampledBytes);
-	        Spectrogram spectrogram = resampledWave.getSpectrogram();
+	        Wave resampledWave = resample(wave);
 	        //System.out.println("num channels: "+resampledWave.getWaveHeader().getChannels());
 	        //System.out.println("resampled length in s: "+resampledWave.length());
 	        if (renderSpectrogram) {
+	            Spectrogram spectrogram = resampledWave.getSpectrogram();
 	            GraphicRender render = new GraphicRender();
 	            render.renderSpectrogramData(spectrogram.getNormalizedSpectrogramData(), "out/"+waveName+"_norm.jpg");
 	        }
-	                
-	        return spectrogram.getAbsoluteSpectrogramData();
+	        // same frames as resampledWave.getSpectrogram().getAbsoluteSpectrogramData(),
+	        // but reusing this thread's FFT plan instead of building one per song
+	        return FftPlan.forThisThread(FFT_SAMPLE_SIZE).spectrogram(resampledWave.getSampleAmplitudes());
 	    } catch (ArrayIndexOutOfBoundsException e) {
 	        // error reading in song
 	        System.out.println("Error processing "+waveName+". skipping");
@@ -37,6 +34,52 @@ public class ReadAudio {
 	    }
 	}
 	
+	/**
+	 * Resamples the wave to SAMPLE_RATE and decodes it, for callers that compute the
+	 * spectrogram themselves (a piece at a time, say).
+	 * 
+	 * @return the samples, or null if the wave couldn't be processed
+	 */
+	public static short[] extractSamples(Wave wave, String waveName) {
+	    try {
+	        System.out.println("reading in song "+waveName);
+	        return resample(wave).getSampleAmplitudes();
+	    } catch (ArrayIndexOutOfBoundsException e) {
+	        // error reading in song
+	        System.out.println("Error processing "+waveName+". skipping");
+	        return null;
+	    }
+	}
+	
+	/**
+	 * Resamples the wave to SAMPLE_RATE. Note that this updates the sample rate
+	 * in the wave's own header.
+	 */
+	public static Wave resample(Wave wave) {
+	    Resampler resampler = new Resampler();
+	    int sourceRate = wave.getWaveHeader().getSampleRate();
+	    byte[] resampledBytes = resampler.reSample(wave.getBytes(), wave.getWaveHeader().getBitsPerSample(), 
+	            sourceRate, SAMPLE_RATE);
+	    WaveHeader resampledHeader = wave.getWaveHeader();
+	    resampledHeader.setSampleRate(SAMPLE_RATE);
+	    return new Wave(resampledHeader, resampledBytes);
+	}
+	
+	/**
+	 * Decodes little-endian 16-bit PCM into samples, the same way
+	 * Wave.getSampleAmplitudes() does.
+	 * 
+	 * @return the number of samples written to out
+	 */
+	public static int toSamples(byte[] bytes, int off, int len, short[] out) {
+	    int numSamples = len / 2;
+	    for (int i = 0; i < numSamples; i++) {
+	        int b = off + 2 * i;
+	        out[i] = (short) ((bytes[b] & 0xff) | (bytes[b + 1] << 8));
+	    }
+	    return numSamples;
+	}
+	
 	  public static int[][] extractKeyPoints(double[][] spectrogram) {
 	        int[][] keyPoints = new int[spectrogram.length][5];
 
@@ -0,0 +1,87 @@
+package audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer, single-consumer ring buffer of 16-bit samples. The capture
+ * thread writes and the matching thread reads without taking any locks: each side
+ * only ever advances its own position, and publishes it with a release store that
+ * the other side picks up with a volatile read.
+ */
+public class SampleRingBuffer {
+
+    private final short[] buffer;
+    private final int mask;
+
+    // total samples ever written / read; the difference is the fill level
+    private final AtomicLong writePos = new AtomicLong();
+    private final AtomicLong readPos = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+
+    /**
+     * @param minCapacity - minimum number of samples the buffer can hold. Rounded up
+     * to a power of two.
+     */
+    public SampleRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        this.buffer = new short[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Copies as many samples as currently fit into the buffer. Samples that don't
+     * fit are dropped (and counted), since blocking the capture thread would just
+     * overrun the line's own buffer instead. Must only be called by the producer.
+     *
+     * @return the number of samples written
+     */
+    public int write(short[] src, int off, int len) {
+        long w = writePos.get();
+        int free = buffer.length - (int) (w - readPos.get());
+        int n = Math.min(len, free);
+        int start = (int) (w & mask);
+        int firstPart = Math.min(n, buffer.length - start);
+        System.arraycopy(src, off, buffer, start, firstPart);
+        System.arraycopy(src, off + firstPart, buffer, 0, n - firstPart);
+        writePos.lazySet(w + n);
+        if (n < len) {
+            droppedSamples.addAndGet(len - n);
+        }
+        return n;
+    }
+
+    /**
+     * Copies up to len buffered samples into dst. Never blocks. Must only be called
+     * by the consumer.
+     *
+     * @return the number of samples read, possibly 0
+     */
+    public int read(short[] dst, int off, int len) {
+        long r = readPos.get();
+        int n = Math.min(len, (int) (writePos.get() - r));
+        int start = (int) (r & mask);
+        int firstPart = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, dst, off, firstPart);
+        System.arraycopy(buffer, 0, dst, off + firstPart, n - firstPart);
+        readPos.lazySet(r + n);
+        return n;
+    }
+
+    /**
+     * @return the number of samples waiting to be read
+     */
+    public int available() {
+        return (int) (writePos.get() - readPos.get());
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return the number of samples thrown away because the consumer fell behind
+     */
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+}
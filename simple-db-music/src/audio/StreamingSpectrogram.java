@@ -0,0 +1,66 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds spectrogram frames incrementally as samples arrive. Frames are computed the
+ * same way ReadAudio.extractSpectogram computes them (non-overlapping, Hamming-windowed
+ * frames of FFT_SAMPLE_SIZE samples), so points extracted from a stream line up with
+ * the points stored in the library.
+ */
+public class StreamingSpectrogram {
+
+    // samples that don't make up a full frame yet
+    private final short[] pending = new short[ReadAudio.FFT_SAMPLE_SIZE];
+    private int numPending = 0;
+    private long numSamples = 0;
+
+    private final List<double[]> frames = new ArrayList<double[]>();
+
+    /**
+     * Adds samples to the stream, computing a frame for every FFT_SAMPLE_SIZE
+     * samples collected.
+     *
+     * @return the number of new frames
+     */
+    public int addSamples(short[] samples, int off, int len) {
+        int newFrames = 0;
+        numSamples += len;
+        for (int i = off; i < off + len; i++) {
+            pending[numPending++] = samples[i];
+            if (numPending == pending.length) {
+                frames.add(computeFrame());
+                numPending = 0;
+                newFrames++;
+            }
+        }
+        return newFrames;
+    }
+
+    private double[] computeFrame() {
+        FftPlan plan = FftPlan.forThisThread(pending.length);
+        double[] frame = new double[plan.getNumBins()];
+        plan.magnitudes(pending, 0, frame);
+        return frame;
+    }
+
+    public int getNumFrames() {
+        return frames.size();
+    }
+
+    /**
+     * @return the total number of samples added so far, including any that haven't
+     * filled a frame yet
+     */
+    public long getNumSamples() {
+        return numSamples;
+    }
+
+    /**
+     * @return frames [from, to) as a spectrogram; the rows are shared, not copied
+     */
+    public double[][] getFrames(int from, int to) {
+        return frames.subList(from, to).toArray(new double[to - from][]);
+    }
+}
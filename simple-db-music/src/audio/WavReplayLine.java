@@ -0,0 +1,191 @@
+package audio;
+
+import java.io.File;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.TargetDataLine;
+
+import com.musicg.wave.Wave;
+
+/**
+ * A TargetDataLine that plays back a WAV file instead of capturing from a
+ * microphone, so the live recognition path can be exercised and timed without
+ * audio hardware. The file is resampled the same way ReadAudio resamples songs.
+ * In real-time mode reads block until the wall clock has caught up with the
+ * audio, like a real capture line; otherwise the file is delivered as fast as it
+ * is read.
+ */
+public class WavReplayLine implements TargetDataLine {
+
+    private final byte[] data;
+    private final AudioFormat format;
+    private final boolean realTime;
+    private final double bytesPerSecond;
+
+    private volatile int position = 0;
+    private volatile boolean open = false;
+    private volatile boolean running = false;
+    private long startNanos;
+
+    public WavReplayLine(File wavFile, boolean realTime) {
+        Wave wave = ReadAudio.resample(new Wave(wavFile.getAbsolutePath()));
+        this.data = wave.getBytes();
+        this.format = new AudioFormat(ReadAudio.SAMPLE_RATE, wave.getWaveHeader().getBitsPerSample(),
+                wave.getWaveHeader().getChannels(), true, false);
+        this.realTime = realTime;
+        this.bytesPerSecond = format.getFrameRate() * format.getFrameSize();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (!open) {
+            return 0;
+        }
+        int end = Math.min(position + len - len % format.getFrameSize(), data.length);
+        if (realTime) {
+            long due = startNanos + (long) (end / bytesPerSecond * 1e9);
+            long wait;
+            while (running && (wait = due - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            if (!running) {
+                return 0;
+            }
+        }
+        int n = end - position;
+        if (n <= 0) {
+            running = false;
+            return 0;
+        }
+        System.arraycopy(data, position, b, off, n);
+        position = end;
+        return n;
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) {
+        open();
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        open();
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void start() {
+        startNanos = System.nanoTime() - (long) (position / bytesPerSecond * 1e9);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running && position < data.length;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return data.length;
+    }
+
+    @Override
+    public int available() {
+        return data.length - position;
+    }
+
+    @Override
+    public void drain() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) getLongFramePosition();
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return position / format.getFrameSize();
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return (long) (position / bytesPerSecond * 1e6);
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public DataLine.Info getLineInfo() {
+        return new DataLine.Info(TargetDataLine.class, format);
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("no controls on a replayed line");
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
@@ -33,14 +33,11 @@ public class AnchorExtractor extends Extractor {
 
     private final boolean useParallelMatching;
     private final int numThreads;
-    private final int earlyReturnThreshold;
-    private final int competitorRatio;
     
     public AnchorExtractor(int earlyReturnThreshold, int competitorRatio, boolean useParallelMatching, int numThreads) {
+        super(earlyReturnThreshold, competitorRatio);
         this.useParallelMatching = useParallelMatching;
         this.numThreads = numThreads;
-        this.earlyReturnThreshold = earlyReturnThreshold;
-        this.competitorRatio = competitorRatio;
     }
 
     @Override
@@ -56,10 +53,20 @@ public class AnchorExtractor extends Extractor {
             AtomicInteger maxVotes2 = new AtomicInteger(-1);
             ConcurrentHashMap<Integer, Double> early = new ConcurrentHashMap<>();
             Iterator<DataPoint> it = randomSample(sampleList).iterator();
+            MatchTrace trace = MatchTrace.current();
 
             Runnable match = new Runnable () {
                 @Override
                 public void run () {
+                    MatchTrace.attach(trace);
+                    try {
+                        matchAll();
+                    } finally {
+                        MatchTrace.detach();
+                    }
+                }
+
+                private void matchAll () {
                     while (true) {
                         DataPoint dp;
                         synchronized (it) {
@@ -173,12 +180,12 @@ public class AnchorExtractor extends Extractor {
             songToScore.put(songId, (double) max);
         }
 
-        return songToScore;
+        return normalizeScores(songToScore);
     }
 
     @Override
-    public Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId) {
-        int[] keyPoints = extractKeyPoints(spectrogram);
+    public Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId, int countFrom, int countTo) {
+        int[] keyPoints = extractKeyPoints(spectrogram, countFrom, countTo);
         Set<DataPoint> dataPoints = new HashSet<DataPoint>();
         int upperBound;
         int curPointsInTargetZone;
@@ -187,8 +194,13 @@ public class AnchorExtractor extends Extractor {
             upperBound = Math.min(i+TARGET_ZONE_MAX_LOOKAHEAD, keyPoints.length);
             curPointsInTargetZone = 0;
 
+            // gated frames neither anchor nor target
+            if (keyPoints[i] == -1) {
+                continue;
+            }
+
             for (int j = i+TARGET_ZONE_MIN_LOOKAHEAD; j < upperBound; j++) {
-                if (Math.abs(keyPoints[i]-keyPoints[j]) > TARGET_ZONE_DIFF) {
+                if (keyPoints[j] == -1 || Math.abs(keyPoints[i]-keyPoints[j]) > TARGET_ZONE_DIFF) {
                     continue;
                 }
 
@@ -203,13 +215,33 @@ public class AnchorExtractor extends Extractor {
         }    
         return dataPoints;
     }
+    
+    @Override
+    public int getFrameLookahead() {
+        // an anchor pairs with targets up to TARGET_ZONE_MAX_LOOKAHEAD frames ahead
+        return TARGET_ZONE_MAX_LOOKAHEAD;
+    }
+    
+    @Override
+    protected String getExtractionSignature() {
+        return "anchor[" + TARGET_ZONE_SIZE + ", " + TARGET_ZONE_MIN_LOOKAHEAD + ", "
+                + TARGET_ZONE_MAX_LOOKAHEAD + ", " + TARGET_ZONE_DIFF + "]";
+    }
 
-    private int[] extractKeyPoints(double[][] spectrogram) {
+    /**
+     * @return the loudest frequency bin of each frame, or -1 for frames the gate skips
+     */
+    private int[] extractKeyPoints(double[][] spectrogram, int countFrom, int countTo) {
         int[] keyPoints = new int[spectrogram.length];
+        boolean[] open = frameGate.openFrames(spectrogram, countFrom, countTo);
         double maxAmplitude;
         int maxFrequency;
         double[] curLine;
         for (int i = 0; i < spectrogram.length; i++) {
+            if (!open[i]) {
+                keyPoints[i] = -1;
+                continue;
+            }
             maxAmplitude = Integer.MIN_VALUE;
             maxFrequency = -1;
             curLine = spectrogram[i];
@@ -227,12 +259,14 @@ public class AnchorExtractor extends Extractor {
 
     private List<DataPoint> randomSample(List<DataPoint> points) {
         Random r = new Random();
-        for (int i = 0; i < RAND_SAMPLE_SIZE; i++) {
+        // a short sample, or one the frame gate thinned out, may have fewer points
+        int size = Math.min(RAND_SAMPLE_SIZE, points.size());
+        for (int i = 0; i < size; i++) {
             int pos = i + r.nextInt(points.size() - i);
             DataPoint temp = points.get(pos);
             points.set(pos, points.get(i));
             points.set(i, temp);
         }
-        return points.subList(0, RAND_SAMPLE_SIZE);
+        return points.subList(0, size);
     }
 }
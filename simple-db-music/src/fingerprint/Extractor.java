@@ -1,5 +1,7 @@
 package fingerprint;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -16,19 +18,150 @@ import simpledb.TransactionId;
 import simpledb.Tuple;
 
 public abstract class Extractor {
-    public abstract Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId);
+    
+    protected final int earlyReturnThreshold;
+    protected final int competitorRatio;
+    protected FrameGate frameGate = new FrameGate();
+    protected Set<Integer> excludedTracks = Collections.emptySet();
+    protected Map<Integer, TrackStats> trackStats = Collections.emptyMap();
+    private boolean normalizeScores = false;
+    
+    protected Extractor(int earlyReturnThreshold, int competitorRatio) {
+        this.earlyReturnThreshold = earlyReturnThreshold;
+        this.competitorRatio = competitorRatio;
+    }
+    
+    public Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId) {
+        return extractDataPoints(spectrogram, trackId, 0, spectrogram.length);
+    }
+    
+    /**
+     * Extracts points from a spectrogram of which only frames countFrom to countTo
+     * (exclusive) are the caller's own; the others are look-ahead or overlap that it
+     * also extracts in another call, and don't count toward the frame gate's statistics.
+     */
+    public abstract Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId, int countFrom, int countTo);
     public abstract Map<Integer, Double> matchPoints(Set<DataPoint> samplePoints, BTreeFile btree, TransactionId tid) throws NoSuchElementException, DbException, TransactionAbortedException;
     
+    /**
+     * Number of spectrogram frames past a frame that can influence the points extracted
+     * for it. Anything streaming or chunking the spectrogram has to re-extract at least
+     * this many trailing frames to end up with the same points as a one-shot extraction.
+     */
+    public abstract int getFrameLookahead();
+    
+    /**
+     * Describes every parameter that affects extractDataPoints, so that cached
+     * fingerprints are only reused for the same extraction settings. Matching-only
+     * settings such as the early return thresholds don't belong here.
+     */
+    public String getParameterSignature() {
+        return getExtractionSignature() + ";" + frameGate.getParameterSignature();
+    }
+    
+    /**
+     * The extractor's own part of getParameterSignature, without the frame gate.
+     */
+    protected abstract String getExtractionSignature();
+    
+    /**
+     * Sets the gate deciding which frames points are extracted from. Library and
+     * sample songs have to be extracted with the same gate.
+     */
+    public void setFrameGate(FrameGate frameGate) {
+        this.frameGate = frameGate;
+    }
+    
+    public FrameGate getFrameGate() {
+        return frameGate;
+    }
+    
+    /**
+     * Sets tracks whose points are ignored when probing the index, for tracks that
+     * were removed from the library but whose points haven't been purged yet. The set
+     * is read on every probe, so it may be a live, concurrently updated view.
+     */
+    public void setExcludedTracks(Set<Integer> excludedTracks) {
+        this.excludedTracks = excludedTracks;
+    }
+    
+    /**
+     * Sets the library's per-track statistics, used to normalize scores. Like the
+     * excluded tracks this may be a live view.
+     */
+    public void setTrackStats(Map<Integer, TrackStats> trackStats) {
+        this.trackStats = trackStats;
+    }
+    
+    /**
+     * Turns score normalization (see normalizeScores) on or off; it is off by default.
+     */
+    public void setNormalizeScores(boolean normalizeScores) {
+        this.normalizeScores = normalizeScores;
+    }
+    
+    /**
+     * Tracks with many distinct hashes (long or busy ones) pick up more chance
+     * matches than short ones, which favors them whenever the votes had to be fully
+     * tallied. When normalization is on, each track's score is scaled by
+     * sqrt(mean / distinct hashes), the mean taken over the scored tracks; the square
+     * root keeps a long track's true alignment ahead of a short track's noise. Early
+     * returns, and tracks without statistics, are left as they are.
+     */
+    protected Map<Integer, Double> normalizeScores(Map<Integer, Double> scores) {
+        if (!normalizeScores || scores.containsValue(-1.0)) {
+            return scores;
+        }
+        double total = 0;
+        int numWithStats = 0;
+        for (int trackId : scores.keySet()) {
+            TrackStats stats = trackStats.get(trackId);
+            if (stats != null && stats.getNumDistinctHashes() > 0) {
+                total += stats.getNumDistinctHashes();
+                numWithStats++;
+            }
+        }
+        if (numWithStats == 0) {
+            return scores;
+        }
+        double mean = total / numWithStats;
+        Map<Integer, Double> normalized = new HashMap<Integer, Double>();
+        for (Map.Entry<Integer, Double> e : scores.entrySet()) {
+            TrackStats stats = trackStats.get(e.getKey());
+            double score = e.getValue();
+            if (stats != null && stats.getNumDistinctHashes() > 0) {
+                score *= Math.sqrt(mean / stats.getNumDistinctHashes());
+            }
+            normalized.put(e.getKey(), score);
+        }
+        return normalized;
+    }
+    
+    public int getEarlyReturnThreshold() {
+        return earlyReturnThreshold;
+    }
+    
+    public int getCompetitorRatio() {
+        return competitorRatio;
+    }
+    
     protected Set<DataPoint> getPointsMatchingHash(int hash, BTreeFile btree, TransactionId tid) throws NoSuchElementException, DbException, TransactionAbortedException {
+        MatchTrace trace = MatchTrace.current();
+        long start = trace == null ? 0 : System.nanoTime();
         Set<DataPoint> dps = new HashSet<DataPoint>();
         IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(hash));
         
         DbFileIterator it = btree.indexIterator(tid, ipred);
         it.open();
         while (it.hasNext()) {
-            dps.add(tupleToDataPoint(it.next()));
+            DataPoint dp = tupleToDataPoint(it.next());
+            if (!excludedTracks.contains(dp.getTrackId())) {
+                dps.add(dp);
+            }
+        }
+        if (trace != null) {
+            trace.recordProbe(System.nanoTime() - start, dps.size());
         }
-        
         return dps;
     }
     
@@ -0,0 +1,167 @@
+package fingerprint;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which spectrogram frames are worth fingerprinting. Silent and near-silent
+ * frames (intros, fades, gaps between tracks) and noise-like frames have no stable
+ * peaks, so the points extracted from them are mostly noise that bloats the index
+ * and wastes probes at query time.
+ * <p>
+ * A frame passes if its mean power is at least minEnergyDb and its spectral flatness
+ * (geometric over arithmetic mean of the power spectrum: near 0 for tonal frames, 1
+ * for white noise) is at most maxFlatness. Counts of seen and skipped frames are kept
+ * across calls and are safe to update from several extraction threads. Callers that
+ * extract some frames more than once, as look-ahead for a chunk or overlap with the
+ * previous batch, say which frames are their own (see openFrames), so that each
+ * frame is counted once.
+ */
+public class FrameGate {
+
+    // music in the sample libraries sits around 70-110 dB; digital silence is far below
+    public static final double DEFAULT_MIN_ENERGY_DB = 50.0;
+    // music frames are well under 0.1; silence with dither or hiss approaches 1
+    public static final double DEFAULT_MAX_FLATNESS = 0.5;
+
+    // keeps the logs finite on all-zero bins
+    private static final double POWER_FLOOR = 1e-12;
+
+    private final double minEnergyDb;
+    private final double maxFlatness;
+
+    private final AtomicLong framesSeen = new AtomicLong();
+    private final AtomicLong quietFrames = new AtomicLong();
+    private final AtomicLong flatFrames = new AtomicLong();
+
+    public FrameGate(double minEnergyDb, double maxFlatness) {
+        if (Double.isNaN(minEnergyDb) || Double.isNaN(maxFlatness)) {
+            throw new IllegalArgumentException("gate thresholds must be numbers");
+        }
+        this.minEnergyDb = minEnergyDb;
+        this.maxFlatness = maxFlatness;
+    }
+
+    public FrameGate() {
+        this(DEFAULT_MIN_ENERGY_DB, DEFAULT_MAX_FLATNESS);
+    }
+
+    /**
+     * @return a gate that lets every frame through, reproducing ungated extraction
+     */
+    public static FrameGate disabled() {
+        return new FrameGate(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @return for each frame of the spectrogram, whether points should be extracted from it
+     */
+    public boolean[] openFrames(double[][] spectrogram) {
+        return openFrames(spectrogram, 0, spectrogram.length);
+    }
+
+    /**
+     * Like openFrames(spectrogram), but only frames countFrom to countTo (exclusive)
+     * count toward the statistics; the others are extracted again by another call.
+     */
+    public boolean[] openFrames(double[][] spectrogram, int countFrom, int countTo) {
+        boolean[] open = new boolean[spectrogram.length];
+        for (int i = 0; i < spectrogram.length; i++) {
+            open[i] = isOpen(spectrogram[i], i >= countFrom && i < countTo);
+        }
+        return open;
+    }
+
+    /**
+     * @param frame FFT magnitudes of one frame
+     * @return whether points should be extracted from the frame
+     */
+    public boolean isOpen(double[] frame) {
+        return isOpen(frame, true);
+    }
+
+    private boolean isOpen(double[] frame, boolean count) {
+        if (count) {
+            framesSeen.incrementAndGet();
+        }
+        if (isDisabled()) {
+            return true;
+        }
+        double sum = 0;
+        double logSum = 0;
+        for (double magnitude : frame) {
+            double power = magnitude * magnitude + POWER_FLOOR;
+            sum += power;
+            logSum += Math.log(power);
+        }
+        double mean = sum / frame.length;
+        if (10 * Math.log10(mean) < minEnergyDb) {
+            if (count) {
+                quietFrames.incrementAndGet();
+            }
+            return false;
+        }
+        if (Math.exp(logSum / frame.length) / mean > maxFlatness) {
+            if (count) {
+                flatFrames.incrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public double getMinEnergyDb() {
+        return minEnergyDb;
+    }
+
+    public double getMaxFlatness() {
+        return maxFlatness;
+    }
+
+    public long getFramesSeen() {
+        return framesSeen.get();
+    }
+
+    public long getFramesSkipped() {
+        return quietFrames.get() + flatFrames.get();
+    }
+
+    /**
+     * @return frames skipped for being below the energy threshold
+     */
+    public long getQuietFramesSkipped() {
+        return quietFrames.get();
+    }
+
+    /**
+     * @return frames skipped for being too noise-like
+     */
+    public long getFlatFramesSkipped() {
+        return flatFrames.get();
+    }
+
+    public void resetStats() {
+        framesSeen.set(0);
+        quietFrames.set(0);
+        flatFrames.set(0);
+    }
+
+    /**
+     * @return the thresholds, in a form suitable for Extractor.getParameterSignature
+     */
+    public String getParameterSignature() {
+        return isDisabled() ? "gate[off]" : "gate[" + minEnergyDb + ", " + maxFlatness + "]";
+    }
+
+    private boolean isDisabled() {
+        return minEnergyDb == Double.NEGATIVE_INFINITY && maxFlatness >= 1.0;
+    }
+
+    @Override
+    public String toString() {
+        long seen = getFramesSeen();
+        long skipped = getFramesSkipped();
+        return "skipped " + skipped + " of " + seen + " frames"
+                + (seen > 0 ? String.format(" (%.1f%%)", 100.0 * skipped / seen) : "")
+                + ": " + getQuietFramesSkipped() + " quiet, " + getFlatFramesSkipped() + " noise-like";
+    }
+}
@@ -0,0 +1,174 @@
+package fingerprint;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import simpledb.PageAccessCounter;
+
+/**
+ * Where the time of one match went, stage by stage, and what it cost the index: the
+ * probes, the postings they returned, and the pages they got from the buffer pool.
+ * <p>
+ * A trace is begun on the thread that runs the match and is picked up from there by
+ * the code doing the work (see current()), so that nothing has to be passed through
+ * the matching APIs. Work the match hands to other threads is recorded with attach or
+ * by adding to a captured trace directly; stage times are then summed over threads.
+ */
+public class MatchTrace {
+
+    public enum Stage {
+        /** parsing the WAV file or upload */
+        DECODE,
+        /** resampling to ReadAudio.SAMPLE_RATE and converting to samples */
+        RESAMPLE,
+        /** computing the spectrogram */
+        FFT,
+        /** extracting the points from the spectrogram */
+        EXTRACT,
+        /** looking the points' hashes up in the index */
+        PROBE,
+        /** voting, scoring and resolving track names: matching minus probing */
+        SCORE;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final ThreadLocal<MatchTrace> CURRENT = new ThreadLocal<MatchTrace>();
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    // how many times each stage was entered, to tell a stage that took no time from one
+    // that didn't run
+    private final AtomicIntegerArray stageCounts = new AtomicIntegerArray(Stage.values().length);
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong postings = new AtomicLong();
+    private final PageAccessCounter pages = new PageAccessCounter();
+    private volatile long totalNanos = -1;
+
+    private MatchTrace() {
+    }
+
+    /**
+     * Begins tracing a match on this thread, unless the thread is already tracing one
+     * (the match is part of a bigger one being traced).
+     *
+     * @return the new trace, which the caller has to end, or null if there already was one
+     */
+    public static MatchTrace begin() {
+        if (CURRENT.get() != null) {
+            return null;
+        }
+        MatchTrace trace = new MatchTrace();
+        attach(trace);
+        return trace;
+    }
+
+    /**
+     * Stops tracing on this thread and fixes the total time.
+     */
+    public void end() {
+        totalNanos = System.nanoTime() - startNanos;
+        detach();
+    }
+
+    /**
+     * @return the trace of the match this thread is working on, or null if none is traced
+     */
+    public static MatchTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Records this thread's work, including its buffer pool accesses, in trace, until
+     * detach. Does nothing if trace is null.
+     */
+    public static void attach(MatchTrace trace) {
+        if (trace != null) {
+            CURRENT.set(trace);
+            PageAccessCounter.install(trace.pages);
+        }
+    }
+
+    public static void detach() {
+        CURRENT.remove();
+        PageAccessCounter.install(null);
+    }
+
+    public void addStageNanos(Stage stage, long nanos) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+        stageCounts.incrementAndGet(stage.ordinal());
+    }
+
+    /**
+     * Records one index lookup that took nanos and returned numPostings points.
+     */
+    public void recordProbe(long nanos, int numPostings) {
+        addStageNanos(Stage.PROBE, nanos);
+        probes.incrementAndGet();
+        postings.addAndGet(numPostings);
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    public double getStageMillis(Stage stage) {
+        return getStageNanos(stage) / 1e6;
+    }
+
+    /**
+     * @return whether any time was recorded for the stage
+     */
+    public boolean ran(Stage stage) {
+        return stageCounts.get(stage.ordinal()) > 0;
+    }
+
+    /**
+     * @return the time from begin to end, or so far if the trace hasn't ended
+     */
+    public long getTotalNanos() {
+        long total = totalNanos;
+        return total >= 0 ? total : System.nanoTime() - startNanos;
+    }
+
+    public double getTotalMillis() {
+        return getTotalNanos() / 1e6;
+    }
+
+    public long getProbes() {
+        return probes.get();
+    }
+
+    public long getPostings() {
+        return postings.get();
+    }
+
+    public long getLeafPages() {
+        return pages.getLeafPages();
+    }
+
+    public long getPageHits() {
+        return pages.getHits();
+    }
+
+    public long getPageMisses() {
+        return pages.getMisses();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%.2f ms:", getTotalMillis()));
+        for (Stage stage : Stage.values()) {
+            if (ran(stage)) {
+                sb.append(String.format(" %s %.2f,", stage.label(), getStageMillis(stage)));
+            }
+        }
+        sb.append(" ").append(getProbes()).append(" probes, ").append(getPostings()).append(" postings, ")
+                .append(getLeafPages()).append(" leaf pages, ").append(getPageHits()).append(" page hits, ")
+                .append(getPageMisses()).append(" misses");
+        return sb.toString();
+    }
+}
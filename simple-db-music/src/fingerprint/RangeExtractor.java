@@ -18,22 +18,22 @@ public class RangeExtractor extends Extractor {
     
     private static final int[] FREQ_RANGES = new int[] {12, 24, 36, 48, 60, 72, 100};
     
-    private final int earlyReturnThreshold;
-    private final int competitorRatio;
-    
     public RangeExtractor(int earlyReturnThreshold, int competitorRatio) {
-        this.earlyReturnThreshold = earlyReturnThreshold;
-        this.competitorRatio = competitorRatio;
+        super(earlyReturnThreshold, competitorRatio);
     }
     
     @Override
-    public Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId) {
+    public Set<DataPoint> extractDataPoints(double[][] spectrogram, int trackId, int countFrom, int countTo) {
         Set<DataPoint> dataPoints = new HashSet<DataPoint>();
         int[][] keyPoints = extractKeyPoints(spectrogram);
+        boolean[] open = frameGate.openFrames(spectrogram, countFrom, countTo);
 
         int key;
         DataPoint dp;
         for (int j = keyPoints.length - 1; j > -1; j--) {
+            if (!open[j]) {
+                continue;
+            }
             key = Arrays.toString(keyPoints[j]).hashCode();
             dp = new DataPoint(key, j, trackId);
             dataPoints.add(dp);
@@ -41,6 +41,17 @@ public class RangeExtractor extends Extractor {
         
         return dataPoints;
     }
+    
+    @Override
+    public int getFrameLookahead() {
+        // every point only depends on its own frame
+        return 0;
+    }
+    
+    @Override
+    protected String getExtractionSignature() {
+        return "range" + Arrays.toString(FREQ_RANGES);
+    }
 
 
     @Override
@@ -97,7 +108,7 @@ public class RangeExtractor extends Extractor {
             //double percentageMatch = checkTimes(matches.get(songId), times.get(songId));
             scores.put(songId, matches.get(songId).size()*1.0);//percentageMatch);
         }
-        return scores;
+        return normalizeScores(scores);
     }
     
     private double checkTimes(List<Integer> real, List<Integer> recorded) {
@@ -0,0 +1,154 @@
+package fingerprint;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import simpledb.BTreeFile;
+import simpledb.DbException;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+
+/**
+ * Offset-aligned vote tally over a window that slides along a long stream one hop at
+ * a time. Each hop's points are probed against the index once, and the hop's votes
+ * are kept as a partial tally; the window's tally is the sum of its hops' tallies,
+ * updated by adding the hop coming in and subtracting the one going out. Overlapping
+ * windows therefore share both the fingerprints and the index probes.
+ */
+public class SlidingWindowMatcher {
+
+    private final Extractor extractor;
+    private final BTreeFile btree;
+    private final TransactionId tid;
+    private final int hopsPerWindow;
+    private final double minVoteFraction;
+
+    // votes keyed by track id (high half) and offset difference (low half)
+    private final ArrayDeque<Map<Long, Integer>> hopVotes = new ArrayDeque<Map<Long, Integer>>();
+    private final Map<Long, Integer> windowVotes = new HashMap<Long, Integer>();
+    private final ArrayDeque<Integer> hopSizes = new ArrayDeque<Integer>();
+    private int windowPoints = 0;
+    private int numProbes = 0;
+
+    private int maxVotes = -1;
+    private int maxSong = -1;
+    private int maxVotes2 = -1;
+
+    /**
+     * @param minVoteFraction the fraction of the window's points that have to vote for
+     * the best alignment before it counts as a match. The extractor's early return
+     * threshold is tuned for clips of a few seconds; over a long window chance
+     * alignments easily pass it, so it is scaled with the window's size.
+     */
+    public SlidingWindowMatcher(Extractor extractor, BTreeFile btree, TransactionId tid, int hopsPerWindow,
+            double minVoteFraction) {
+        if (hopsPerWindow <= 0) {
+            throw new IllegalArgumentException("a window needs at least one hop");
+        }
+        this.extractor = extractor;
+        this.btree = btree;
+        this.tid = tid;
+        this.hopsPerWindow = hopsPerWindow;
+        this.minVoteFraction = minVoteFraction;
+    }
+
+    /**
+     * Slides the window forward by one hop: probes the hop's points, adds their votes
+     * and drops the votes of the hop that falls out of the window. Time offsets of the
+     * points must be absolute positions in the stream.
+     */
+    public void addHop(Collection<DataPoint> hopPoints) throws NoSuchElementException, DbException, TransactionAbortedException {
+        Map<Long, Integer> votes = new HashMap<Long, Integer>();
+        for (DataPoint dp : hopPoints) {
+            numProbes++;
+            for (DataPoint knownPoint : extractor.getPointsMatchingHash(dp.getHash(), btree, tid)) {
+                votes.merge(key(knownPoint.getTrackId(), knownPoint.getTimeOffset() - dp.getTimeOffset()), 1, Integer::sum);
+            }
+        }
+        hopVotes.addLast(votes);
+        hopSizes.addLast(hopPoints.size());
+        windowPoints += hopPoints.size();
+        for (Entry<Long, Integer> e : votes.entrySet()) {
+            windowVotes.merge(e.getKey(), e.getValue(), Integer::sum);
+        }
+        if (hopVotes.size() > hopsPerWindow) {
+            windowPoints -= hopSizes.removeFirst();
+            for (Entry<Long, Integer> e : hopVotes.removeFirst().entrySet()) {
+                // drops the entry once no hop in the window votes for it
+                windowVotes.merge(e.getKey(), -e.getValue(), (a, b) -> a + b == 0 ? null : a + b);
+            }
+        }
+        rankWindow();
+    }
+
+    private void rankWindow() {
+        Map<Integer, Integer> bestPerSong = new HashMap<Integer, Integer>();
+        for (Entry<Long, Integer> e : windowVotes.entrySet()) {
+            bestPerSong.merge((int) (e.getKey() >> 32), e.getValue(), Math::max);
+        }
+        maxVotes = -1;
+        maxSong = -1;
+        maxVotes2 = -1;
+        for (Entry<Integer, Integer> e : bestPerSong.entrySet()) {
+            if (e.getValue() > maxVotes) {
+                maxVotes2 = maxVotes;
+                maxVotes = e.getValue();
+                maxSong = e.getKey();
+            } else if (e.getValue() > maxVotes2) {
+                maxVotes2 = e.getValue();
+            }
+        }
+    }
+
+    private static long key(int trackId, int offsetDiff) {
+        return ((long) trackId << 32) | (offsetDiff & 0xffffffffL);
+    }
+
+    /**
+     * @return whether the current window's best track passes the extractor's early
+     * return test and has at least minVoteFraction of the window's points behind it
+     */
+    public boolean isConfident() {
+        return maxVotes > extractor.getEarlyReturnThreshold()
+                && maxVotes >= minVoteFraction * windowPoints
+                && maxVotes2 <= maxVotes / extractor.getCompetitorRatio();
+    }
+
+    /**
+     * @return the track with the most aligned votes in the current window, or -1 if
+     * nothing matched
+     */
+    public int getBestTrackId() {
+        return maxSong;
+    }
+
+    public int getBestVotes() {
+        return maxVotes;
+    }
+
+    /**
+     * @return the number of hops currently in the window
+     */
+    public int getNumHops() {
+        return hopVotes.size();
+    }
+
+    /**
+     * @return the number of sample points in the current window
+     */
+    public int getWindowPoints() {
+        return windowPoints;
+    }
+
+    public int getHopsPerWindow() {
+        return hopsPerWindow;
+    }
+
+    public int getNumProbes() {
+        return numProbes;
+    }
+}
@@ -0,0 +1,106 @@
+package fingerprint;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import simpledb.BTreeFile;
+import simpledb.DbException;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+
+/**
+ * Offset-aligned vote tally that can be fed sample points a few at a time, e.g. as
+ * they come off a live spectrogram. Votes persist between calls, so each point is
+ * probed against the index exactly once, and the caller can stop as soon as
+ * {@link #isConfident()} is true.
+ */
+public class StreamingMatcher {
+
+    private final Extractor extractor;
+    private final BTreeFile btree;
+    private final TransactionId tid;
+
+    private final Map<Integer, Map<Integer, Integer>> songToOffsetVotes = new HashMap<Integer, Map<Integer, Integer>>();
+    private int maxVotes = -1;
+    private int maxSong = -1;
+    private int maxVotes2 = -1;
+    private int numProbes = 0;
+
+    public StreamingMatcher(Extractor extractor, BTreeFile btree, TransactionId tid) {
+        this.extractor = extractor;
+        this.btree = btree;
+        this.tid = tid;
+    }
+
+    /**
+     * Probes the index for each of the given sample points and adds their votes.
+     * Stops early once the tally is confident.
+     *
+     * @return whether the tally is now confident
+     */
+    public boolean addPoints(Collection<DataPoint> samplePoints) throws NoSuchElementException, DbException, TransactionAbortedException {
+        for (DataPoint dp : samplePoints) {
+            if (isConfident()) {
+                return true;
+            }
+            numProbes++;
+            for (DataPoint knownPoint : extractor.getPointsMatchingHash(dp.getHash(), btree, tid)) {
+                Map<Integer, Integer> songVotes = songToOffsetVotes.get(knownPoint.getTrackId());
+                if (songVotes == null) {
+                    songVotes = new HashMap<Integer, Integer>();
+                    songToOffsetVotes.put(knownPoint.getTrackId(), songVotes);
+                }
+                int curDiff = knownPoint.getTimeOffset() - dp.getTimeOffset();
+                Integer curVotes = songVotes.get(curDiff);
+                curVotes = (curVotes == null) ? 1 : curVotes + 1;
+                songVotes.put(curDiff, curVotes);
+                if (curVotes > maxVotes) {
+                    if (maxSong != knownPoint.getTrackId()) {
+                        maxVotes2 = maxVotes;
+                    }
+                    maxVotes = curVotes;
+                    maxSong = knownPoint.getTrackId();
+                }
+            }
+        }
+        return isConfident();
+    }
+
+    public boolean isConfident() {
+        return maxVotes > extractor.getEarlyReturnThreshold()
+                && maxVotes2 <= maxVotes / extractor.getCompetitorRatio();
+    }
+
+    /**
+     * @return the track with the most aligned votes so far, or -1 if nothing matched
+     */
+    public int getBestTrackId() {
+        return maxSong;
+    }
+
+    public int getBestVotes() {
+        return maxVotes;
+    }
+
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+    /**
+     * @return the largest aligned vote count per track seen so far
+     */
+    public Map<Integer, Double> getScores() {
+        Map<Integer, Double> songToScore = new HashMap<Integer, Double>();
+        for (Entry<Integer, Map<Integer, Integer>> song : songToOffsetVotes.entrySet()) {
+            int max = -1;
+            for (int votes : song.getValue().values()) {
+                max = Math.max(max, votes);
+            }
+            songToScore.put(song.getKey(), (double) max);
+        }
+        return songToScore;
+    }
+}
@@ -0,0 +1,59 @@
+package fingerprint;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Summary of one library track's points in the index: how many there are, how many
+ * spectrogram frames they span, and how many distinct hashes they have.
+ */
+public class TrackStats {
+    private final int trackId;
+    private final int numPoints;
+    private final int numFrames;
+    private final int numDistinctHashes;
+
+    public TrackStats(int trackId, int numPoints, int numFrames, int numDistinctHashes) {
+        this.trackId = trackId;
+        this.numPoints = numPoints;
+        this.numFrames = numFrames;
+        this.numDistinctHashes = numDistinctHashes;
+    }
+
+    public static TrackStats of(int trackId, Collection<DataPoint> points) {
+        Set<Integer> hashes = new HashSet<Integer>();
+        int lastFrame = -1;
+        for (DataPoint p : points) {
+            hashes.add(p.getHash());
+            lastFrame = Math.max(lastFrame, p.getTimeOffset());
+        }
+        return new TrackStats(trackId, points.size(), lastFrame + 1, hashes.size());
+    }
+
+    public int getTrackId() {
+        return trackId;
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    /**
+     * @return the number of spectrogram frames from the start of the track to its
+     * last point
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public int getNumDistinctHashes() {
+        return numDistinctHashes;
+    }
+
+    @Override
+    public String toString() {
+        return "track " + trackId + ": " + numPoints + " points, " + numFrames + " frames, "
+                + numDistinctHashes + " distinct hashes";
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * ARC, the adaptive replacement cache of Megiddo and Modha. Pages used once since
+ * they were read in are kept in T1 and pages used again in T2, both in LRU order;
+ * the ids of pages recently evicted from each are remembered in B1 and B2. A miss on
+ * a page remembered in B1 means T1 was too small, and a miss on one in B2 that T2
+ * was, so the target size of T1 moves towards whichever list is losing pages that
+ * come back. A scan only ever fills T1, so it can't push the pages matching keeps
+ * coming back to out of T2.
+ */
+class ArcPolicy extends ReplacementPolicy {
+
+	// all guarded by this
+	private final PageList t1 = new PageList();
+	private final PageList t2 = new PageList();
+	private final PageList b1 = new PageList();
+	private final PageList b2 = new PageList();
+	private int capacity;
+	// target size of T1
+	private int p;
+
+	ArcPolicy(int numPages) {
+		this.capacity = Math.max(1, numPages);
+	}
+
+	@Override
+	synchronized void add(PageId pid) {
+		if (t1.contains(pid) || t2.contains(pid)) {
+			return;
+		}
+		if (b1.remove(pid)) {
+			p = Math.min(capacity, p + Math.max(b2.size() / Math.max(1, b1.size()), 1));
+			t2.addLast(pid);
+		} else if (b2.remove(pid)) {
+			p = Math.max(0, p - Math.max(b1.size() / Math.max(1, b2.size()), 1));
+			t2.addLast(pid);
+		} else {
+			t1.addLast(pid);
+		}
+	}
+
+	@Override
+	synchronized void access(PageId pid) {
+		if (t1.remove(pid)) {
+			t2.addLast(pid);
+		} else {
+			t2.moveToLast(pid);
+		}
+	}
+
+	@Override
+	synchronized void remove(PageId pid) {
+		if (!t1.remove(pid)) {
+			t2.remove(pid);
+		}
+	}
+
+	@Override
+	synchronized void resize(int numPages) {
+		this.capacity = Math.max(1, numPages);
+		this.p = Math.min(p, capacity);
+	}
+
+	@Override
+	synchronized PageId victim(Predicate<PageId> eligible) {
+		boolean fromT1 = t1.size() > 0 && (t1.size() > p || t2.size() == 0);
+		PageId pid = fromT1 ? t1.removeFirst(eligible) : t2.removeFirst(eligible);
+		if (pid == null) {
+			// nothing eligible where the victim would normally come from
+			fromT1 = !fromT1;
+			pid = fromT1 ? t1.removeFirst(eligible) : t2.removeFirst(eligible);
+			if (pid == null) {
+				return null;
+			}
+		}
+		if (fromT1) {
+			b1.addLast(pid);
+		} else {
+			b2.addLast(pid);
+		}
+		// remember at most a pool's worth of evicted pages
+		while (b1.size() + b2.size() > capacity) {
+			if (b1.size() > 0 && (t1.size() + b1.size() > capacity || b2.size() == 0)) {
+				b1.removeFirst();
+			} else {
+				b2.removeFirst();
+			}
+		}
+		return pid;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.ARC;
+	}
+}
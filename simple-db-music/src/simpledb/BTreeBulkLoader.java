@@ -0,0 +1,432 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile from an unsorted stream of tuples without
+ * going through BTreeFile.insertTuple. Tuples are sorted externally: they are
+ * buffered up to a fixed number in memory, and each full buffer is sorted and
+ * spilled to a temporary run file next to the B+ tree file. When all tuples have
+ * been added, the runs are merged and the tree is written bottom-up in a single
+ * sequential pass: first the leaf pages, filled to the requested fill factor, then
+ * each internal level, ending with the root.
+ * <p>
+ * Since the total number of tuples is known once they have all been added, the page
+ * number of every page is computed up front, so parent and sibling pointers are
+ * written with the pages rather than patched afterwards as BTreeFileEncoder does.
+ * The result is an ordinary B+ tree file that BTreeUtility.openBTreeFile can open.
+ */
+public class BTreeBulkLoader {
+
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+	public static final int DEFAULT_MAX_TUPLES_IN_MEMORY = 250000;
+
+	private final File bFile;
+	private final TupleDesc td;
+	private final int keyField;
+	private final double fillFactor;
+	private final int maxTuplesInMemory;
+	// the size of the tree's pages, 0 for BufferPool.getPageSize()
+	private final int pageSize;
+	private final Type[] typeAr;
+
+	private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+	private final ArrayList<File> runs = new ArrayList<File>();
+	private int numTuples = 0;
+
+	/**
+	 * Create a bulk loader
+	 *
+	 * @param bFile - the file on disk to back the resulting BTreeFile; it is overwritten
+	 * @param td - the tuple descriptor of the tuples to load
+	 * @param keyField - the index of the key field for this B+ tree
+	 * @param fillFactor - the fraction of each page to fill, in [0.5, 1]. Leaving some
+	 *        room lets later inserts go in without splitting every page they touch;
+	 *        below half full the tree would break the B+ tree occupancy invariant.
+	 *        Pages may end up fuller than this, since the tuples are spread evenly
+	 *        and no page other than the root is left less than half full.
+	 * @param maxTuplesInMemory - the number of tuples to sort in memory before spilling
+	 *        a sorted run to disk
+	 */
+	public BTreeBulkLoader(File bFile, TupleDesc td, int keyField, double fillFactor, int maxTuplesInMemory) {
+		this(bFile, td, keyField, fillFactor, maxTuplesInMemory, 0);
+	}
+
+	/**
+	 * Create a bulk loader for a B+ tree whose pages are pageSize bytes. The size is
+	 * recorded in the file's root pointer page (see BTreeRootPtrPage#encodePageSize).
+	 *
+	 * @param pageSize - the size of the tree's pages, 0 for BufferPool.getPageSize()
+	 * @see #BTreeBulkLoader(File, TupleDesc, int, double, int)
+	 */
+	public BTreeBulkLoader(File bFile, TupleDesc td, int keyField, double fillFactor, int maxTuplesInMemory, 
+			int pageSize) {
+		if (fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in [0.5, 1], not " + fillFactor);
+		}
+		if (maxTuplesInMemory <= 0) {
+			throw new IllegalArgumentException("need room for at least one tuple in memory");
+		}
+		this.bFile = bFile;
+		this.td = td;
+		this.keyField = keyField;
+		this.fillFactor = fillFactor;
+		this.maxTuplesInMemory = maxTuplesInMemory;
+		BTreeRootPtrPage.encodePageSize(pageSize); // check it can be recorded
+		this.pageSize = pageSize;
+		this.typeAr = new Type[td.numFields()];
+		for (int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+	}
+
+	public BTreeBulkLoader(File bFile, TupleDesc td, int keyField) {
+		this(bFile, td, keyField, DEFAULT_FILL_FACTOR, DEFAULT_MAX_TUPLES_IN_MEMORY);
+	}
+
+	public BTreeBulkLoader(File bFile, TupleDesc td, int keyField, int pageSize) {
+		this(bFile, td, keyField, DEFAULT_FILL_FACTOR, DEFAULT_MAX_TUPLES_IN_MEMORY, pageSize);
+	}
+
+	/**
+	 * Add a tuple to the B+ tree being built
+	 *
+	 * @param t - the tuple to add
+	 * @throws IOException if a sorted run could not be spilled to disk
+	 */
+	public void add(Tuple t) throws IOException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new IllegalArgumentException("tuple does not match the loader's TupleDesc");
+		}
+		buffer.add(t);
+		numTuples++;
+		if (buffer.size() >= maxTuplesInMemory) {
+			spillRun();
+		}
+	}
+
+	/**
+	 * @return the number of tuples added so far
+	 */
+	public int numTuples() {
+		return numTuples;
+	}
+
+	/**
+	 * @return the number of sorted runs spilled to disk so far
+	 */
+	public int numRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Sort all the tuples added and write out the B+ tree file. The file is opened
+	 * and added to the catalog as by BTreeUtility.openBTreeFile; no pages of it may
+	 * be in the buffer pool.
+	 *
+	 * @return the BTreeFile
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	public BTreeFile finish() throws IOException, DbException {
+		Iterator<Tuple> sorted;
+		if (runs.isEmpty()) {
+			Collections.sort(buffer, new BTreeFileEncoder.TupleComparator(keyField));
+			sorted = buffer.iterator();
+		}
+		else {
+			if (!buffer.isEmpty()) {
+				spillRun();
+			}
+			sorted = new RunMerger();
+		}
+
+		BTreeFile bf = new BTreeFile(bFile, keyField, td, pageSize);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		try {
+			writeTree(bf, sorted);
+		}
+		finally {
+			if (sorted instanceof RunMerger) {
+				((RunMerger) sorted).close();
+			}
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+			buffer = new ArrayList<Tuple>();
+		}
+		return bf;
+	}
+
+	/**
+	 * Sort the buffered tuples and write them out as a run
+	 */
+	private void spillRun() throws IOException {
+		Collections.sort(buffer, new BTreeFileEncoder.TupleComparator(keyField));
+		File dir = bFile.getAbsoluteFile().getParentFile();
+		File run = File.createTempFile("btree_run", ".tmp", dir);
+		run.deleteOnExit();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+		try {
+			for (Tuple t : buffer) {
+				for (int j = 0; j < typeAr.length; j++) {
+					t.getField(j).serialize(dos);
+				}
+			}
+		}
+		finally {
+			dos.close();
+		}
+		runs.add(run);
+		buffer = new ArrayList<Tuple>();
+	}
+
+	/**
+	 * Write out the root pointer page, the leaf pages and the internal pages, in file
+	 * order.
+	 */
+	private void writeTree(BTreeFile bf, Iterator<Tuple> sorted) throws IOException, DbException {
+		int tableid = bf.getId();
+		// not bf.getPageSize(), which would read the size from the file being overwritten
+		int npagebytes = pageSize != 0 ? pageSize : BufferPool.getPageSize();
+		Type keyType = typeAr[keyField];
+
+		int nrecbytes = 0;
+		for (int i = 0; i < typeAr.length; i++) {
+			nrecbytes += typeAr[i].getLen();
+		}
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) / (nrecbytes * 8 + 1);
+		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+
+		// lay out the levels: levelSizes[0] leaf pages, then each internal level up to
+		// a single root page. Each level gets enough pages to hold its items at the
+		// fill factor, but never so many that spreading the items evenly leaves pages
+		// less than half full.
+		ArrayList<Integer> levelSizes = new ArrayList<Integer>();
+		levelSizes.add(numPages(numTuples, (int) (nrecords * fillFactor), nrecords / 2));
+		while (levelSizes.get(levelSizes.size() - 1) > 1) {
+			int children = levelSizes.get(levelSizes.size() - 1);
+			// a page with m entries has m + 1 children
+			levelSizes.add(numPages(children, (int) ((nentries + 1) * fillFactor), nentries / 2 + 1));
+		}
+		int[] firstPage = new int[levelSizes.size()];
+		int nextPage = 1;
+		for (int level = 0; level < levelSizes.size(); level++) {
+			firstPage[level] = nextPage;
+			nextPage += levelSizes.get(level);
+		}
+		int root = nextPage - 1;
+		int rootCategory = (levelSizes.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+
+		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(bFile), 1 << 16);
+		try {
+			out.write(BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0, pageSize));
+
+			// leaf pages, remembering the first key of each for the level above
+			int numLeaves = levelSizes.get(0);
+			ArrayList<Field> minKeys = new ArrayList<Field>(numLeaves);
+			for (int i = 0; i < numLeaves; i++) {
+				int count = share(numTuples, numLeaves, i);
+				ArrayList<Tuple> pageTuples = new ArrayList<Tuple>(count);
+				for (int t = 0; t < count; t++) {
+					pageTuples.add(sorted.next());
+				}
+				minKeys.add(count > 0 ? pageTuples.get(0).getField(keyField) : null);
+
+				BTreePageId pid = new BTreePageId(tableid, firstPage[0] + i, BTreePageId.LEAF);
+				BTreeLeafPage page = new BTreeLeafPage(pid,
+						BTreeFileEncoder.convertToLeafPage(pageTuples, npagebytes, typeAr.length, typeAr, keyField),
+						keyField);
+				page.setParentId(parentOf(tableid, levelSizes, firstPage, 0, i));
+				page.setLeftSiblingId(i > 0 ? new BTreePageId(tableid, pid.pageNumber() - 1, BTreePageId.LEAF) : null);
+				page.setRightSiblingId(i < numLeaves - 1 ? new BTreePageId(tableid, pid.pageNumber() + 1, BTreePageId.LEAF) : null);
+				out.write(page.getPageData());
+			}
+
+			// internal levels, bottom-up
+			for (int level = 1; level < levelSizes.size(); level++) {
+				int numChildren = levelSizes.get(level - 1);
+				int numPages = levelSizes.get(level);
+				int childCategory = (level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+				ArrayList<Field> levelMinKeys = new ArrayList<Field>(numPages);
+				int child = 0;
+				for (int i = 0; i < numPages; i++) {
+					int count = share(numChildren, numPages, i);
+					ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>(count - 1);
+					for (int c = 1; c < count; c++) {
+						entries.add(new BTreeEntry(minKeys.get(child + c),
+								new BTreePageId(tableid, firstPage[level - 1] + child + c - 1, childCategory),
+								new BTreePageId(tableid, firstPage[level - 1] + child + c, childCategory)));
+					}
+					levelMinKeys.add(minKeys.get(child));
+					child += count;
+
+					BTreePageId pid = new BTreePageId(tableid, firstPage[level] + i, BTreePageId.INTERNAL);
+					BTreeInternalPage page = new BTreeInternalPage(pid,
+							BTreeFileEncoder.convertToInternalPage(entries, npagebytes, keyType, childCategory),
+							keyField);
+					page.setParentId(parentOf(tableid, levelSizes, firstPage, level, i));
+					out.write(page.getPageData());
+				}
+				minKeys = levelMinKeys;
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the number of pages to spread items over, given the number each page
+	 *         should hold and the least a page may hold
+	 */
+	private static int numPages(int items, int perPage, int minPerPage) {
+		int pages = ceilDiv(items, Math.max(1, perPage));
+		return Math.max(1, Math.min(pages, items / Math.max(1, minPerPage)));
+	}
+
+	/**
+	 * @return the id of the parent of the index'th page of the given level
+	 */
+	private static BTreePageId parentOf(int tableid, ArrayList<Integer> levelSizes, int[] firstPage,
+			int level, int index) {
+		if (level == levelSizes.size() - 1) {
+			return BTreeRootPtrPage.getId(tableid);
+		}
+		int n = levelSizes.get(level);
+		int parents = levelSizes.get(level + 1);
+		int base = n / parents;
+		int extra = n % parents;
+		// the first extra parents get base + 1 children each, the rest get base
+		int parent = (index < extra * (base + 1)) ? index / (base + 1) : extra + (index - extra * (base + 1)) / base;
+		return new BTreePageId(tableid, firstPage[level + 1] + parent, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * @return how many of total items the index'th of n pages gets when the items are
+	 *         spread as evenly as possible, earlier pages taking the remainder
+	 */
+	private static int share(int total, int n, int index) {
+		return total / n + (index < total % n ? 1 : 0);
+	}
+
+	private static int ceilDiv(int a, int b) {
+		return (a + b - 1) / b;
+	}
+
+	/**
+	 * Merges the sorted runs into a single sorted stream of tuples
+	 */
+	private class RunMerger implements Iterator<Tuple> {
+		private final PriorityQueue<RunReader> heads;
+		private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+
+		RunMerger() throws IOException {
+			final BTreeFileEncoder.TupleComparator cmp = new BTreeFileEncoder.TupleComparator(keyField);
+			heads = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+				public int compare(RunReader r1, RunReader r2) {
+					int c = cmp.compare(r1.head, r2.head);
+					// keep equal keys in run order, so the merge is stable
+					return c != 0 ? c : Integer.compare(r1.runIndex, r2.runIndex);
+				}
+			});
+			for (int i = 0; i < runs.size(); i++) {
+				RunReader reader = new RunReader(runs.get(i), i);
+				readers.add(reader);
+				if (reader.advance()) {
+					heads.add(reader);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		public Tuple next() {
+			RunReader reader = heads.poll();
+			if (reader == null) {
+				throw new NoSuchElementException();
+			}
+			Tuple t = reader.head;
+			try {
+				if (reader.advance()) {
+					heads.add(reader);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("error reading sorted run", e);
+			}
+			return t;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		void close() {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the tuples of one sorted run back in order
+	 */
+	private class RunReader {
+		private final DataInputStream dis;
+		private final int runIndex;
+		private int remaining;
+		private Tuple head;
+
+		RunReader(File run, int runIndex) throws IOException {
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.runIndex = runIndex;
+			int recordLen = 0;
+			for (Type type : typeAr) {
+				recordLen += type.getLen();
+			}
+			this.remaining = (int) (run.length() / recordLen);
+		}
+
+		/**
+		 * Move on to the run's next tuple
+		 *
+		 * @return false if the run is exhausted
+		 */
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				head = null;
+				close();
+				return false;
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for (int j = 0; j < typeAr.length; j++) {
+					t.setField(j, typeAr[j].parse(dis));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sorted run", e);
+			}
+			head = t;
+			return true;
+		}
+
+		void close() {
+			try {
+				dis.close();
+			} catch (IOException e) {
+				// nothing useful to do
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -25,6 +26,15 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final boolean readOnly;
+	// the page size to create the file with, 0 for the default
+	private final int newPageSize;
+	// the page size recorded in the file, read on first use; 0 until then
+	private volatile int pageSize;
+	// opened by the first write and kept open for the next ones
+	private FileChannel channel;
+	// the most of the buffer pool's budget pinUpperLevels may pin
+	private static final double MAX_PINNED_FRACTION = 0.5;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +45,88 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally read-only. 
+	 * A read-only file rejects inserts, deletes and page writes, and its pages are 
+	 * read without the before images that only recovery of modified pages needs, 
+	 * which makes serving lookups from it cheaper.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param readOnly - whether the file may be modified
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean readOnly) {
+		this(f, key, td, readOnly, 0);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, whose pages are pageSize
+	 * bytes if it has to be created. The page size is recorded in the root pointer page
+	 * (see BTreeRootPtrPage#encodePageSize), so a file that exists already keeps the 
+	 * size it was created with, whatever is passed here.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param pageSize - the size of the pages of a new file, 0 for BufferPool.getPageSize()
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, int pageSize) {
+		this(f, key, td, false, pageSize);
+	}
+
+	private BTreeFile(File f, int key, TupleDesc td, boolean readOnly, int pageSize) {
+		BTreeRootPtrPage.encodePageSize(pageSize); // check it can be recorded
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.readOnly = readOnly;
+		this.newPageSize = pageSize;
+	}
+
+	/**
+	 * Returns whether this file was opened read-only
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Returns the size of the pages of this file other than the root pointer page: the
+	 * size recorded in the file, or the size it will be created with if it is empty
+	 */
+	public int getPageSize() {
+		int size = pageSize;
+		if(size != 0) {
+			return size;
+		}
+		synchronized(this) {
+			if(pageSize == 0) {
+				if(f.length() < BTreeRootPtrPage.getPageSize()) {
+					// not created yet
+					return newPageSize != 0 ? newPageSize : BufferPool.getPageSize();
+				}
+				byte[] rootPtrData = new byte[BTreeRootPtrPage.getPageSize()];
+				try {
+					RandomAccessFile rf = new RandomAccessFile(f, "r");
+					try {
+						rf.readFully(rootPtrData);
+					} finally {
+						rf.close();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				pageSize = BTreeRootPtrPage.readPageSize(rootPtrData);
+			}
+			return pageSize;
+		}
 	}
 
 	/**
@@ -94,37 +182,26 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
+				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf, !readOnly);
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
+				int pageSize = getPageSize();
+				byte pageBuf[] = new byte[pageSize];
+				if (bis.skip(offsetOf(id)) != offsetOf(id)) {
 					throw new IllegalArgumentException(
 							"Unable to seek to correct place in BTreeFile");
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = bis.read(pageBuf, 0, pageSize);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
+				if (retval < pageSize) {
 					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+							+ pageSize + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return createPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -139,6 +216,229 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Construct a page of this file from bytes read from it earlier, such as a copy
+	 * kept in the buffer pool's frame arena
+	 * 
+	 * @param pid - the id of the page
+	 * @param data - the page's bytes
+	 * @return the page
+	 */
+	@Override
+	public Page decodePage(PageId pid, byte[] data) {
+		BTreePageId id = (BTreePageId) pid;
+		try {
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				return new BTreeRootPtrPage(id, data, !readOnly);
+			}
+			return createPage(id, data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Construct a non root pointer page of this file from its on-disk contents
+	 * 
+	 * @param id - the id of the page
+	 * @param pageBuf - the page's bytes
+	 * @return the page
+	 * @throws IOException
+	 */
+	private Page createPage(BTreePageId id, byte[] pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, pageBuf, keyField, !readOnly);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, pageBuf, keyField, !readOnly);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, pageBuf);
+		}
+	}
+
+	/**
+	 * Read several pages from disk, coalescing runs of consecutive page numbers into 
+	 * single sequential reads. Like readPage, this should be called on behalf of the 
+	 * BufferPool (see cacheHotSet and pinUpperLevels) rather than directly.
+	 * 
+	 * @param pids - the ids of the pages to read, in any order. Root pointer ids and 
+	 * pages past the end of the file are skipped
+	 * @return the pages read, in file order
+	 * @throws IOException
+	 */
+	public ArrayList<Page> readPages(Collection<BTreePageId> pids) throws IOException {
+		ArrayList<BTreePageId> sorted = new ArrayList<BTreePageId>();
+		int numPages = numPages();
+		for(BTreePageId id : pids) {
+			if(id.pgcateg() != BTreePageId.ROOT_PTR && id.pageNumber() >= 1 && id.pageNumber() <= numPages) {
+				sorted.add(id);
+			}
+		}
+		Collections.sort(sorted, (a, b) -> Integer.compare(a.pageNumber(), b.pageNumber()));
+		ArrayList<Page> pages = new ArrayList<Page>(sorted.size());
+		int pageSize = getPageSize();
+		RandomAccessFile rf = new RandomAccessFile(f, "r");
+		try {
+			int start = 0;
+			while(start < sorted.size()) {
+				// extend the run while the page numbers are consecutive
+				int end = start + 1;
+				while(end < sorted.size() && sorted.get(end).pageNumber() == sorted.get(end - 1).pageNumber() + 1) {
+					end++;
+				}
+				byte[] run = new byte[(end - start) * pageSize];
+				rf.seek(offsetOf(sorted.get(start)));
+				rf.readFully(run);
+				for(int i = start; i < end; i++) {
+					pages.add(createPage(sorted.get(i), Arrays.copyOfRange(run, (i - start) * pageSize, (i - start + 1) * pageSize)));
+				}
+				start = end;
+			}
+		} finally {
+			rf.close();
+		}
+		return pages;
+	}
+
+	/**
+	 * Read the root pointer page and every internal page of the tree into the buffer 
+	 * pool and pin them there, so that every search runs from memory down to the 
+	 * leaves. The tree is read a level at a time, each level with readPages. Unpinned
+	 * pages are evicted to make room. The pinned pages may take at most 
+	 * MAX_PINNED_FRACTION of the pool's budget, so that searches still have room for 
+	 * leaves; if they would take more, or a page can't be pinned, nothing is left 
+	 * pinned.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the number of pages pinned
+	 * @throws DbException if the internal pages don't fit or can't be pinned
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public int pinUpperLevels(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		long maxPinnedBytes = (long) (bufferPool.getBudgetBytes() * MAX_PINNED_FRACTION);
+		long pinnedBytes = 0;
+		ArrayList<PageId> pinned = new ArrayList<PageId>();
+		boolean done = false;
+		try {
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bufferPool.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+			bufferPool.pinPage(rootPtrId);
+			pinned.add(rootPtrId);
+			pinnedBytes += rootPtr.getSize();
+			ArrayList<BTreePageId> level = new ArrayList<BTreePageId>();
+			BTreePageId rootId = rootPtr.getRootId();
+			if(rootId != null && rootId.pgcateg() == BTreePageId.INTERNAL) {
+				level.add(rootId);
+			}
+			while(!level.isEmpty()) {
+				pinnedBytes += (long) level.size() * getPageSize();
+				if(pinnedBytes > maxPinnedBytes) {
+					throw new DbException("the internal pages of the B+ tree take more than " 
+							+ maxPinnedBytes + " bytes of the buffer pool");
+				}
+				ArrayList<BTreePageId> nextLevel = new ArrayList<BTreePageId>();
+				for(Page read : readPages(level)) {
+					// a cached copy may be newer than the one on disk
+					BTreeInternalPage page = (BTreeInternalPage) bufferPool.cachePage(read, true);
+					pinned.add(page.getId());
+					Iterator<BTreeEntry> it = page.iterator();
+					boolean first = true;
+					while(it.hasNext()) {
+						BTreeEntry e = it.next();
+						if(first && e.getLeftChild().pgcateg() == BTreePageId.INTERNAL) {
+							nextLevel.add(e.getLeftChild());
+						}
+						first = false;
+						if(e.getRightChild().pgcateg() == BTreePageId.INTERNAL) {
+							nextLevel.add(e.getRightChild());
+						}
+					}
+				}
+				level = nextLevel;
+			}
+			done = true;
+			return pinned.size();
+		} finally {
+			if(!done) {
+				for(PageId pid : pinned) {
+					bufferPool.unpinPage(pid);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save the ids of this file's most used pages in the buffer pool, for 
+	 * cacheHotSet to read back in after a restart.
+	 * 
+	 * @param hotSet - the file to write the page ids to
+	 * @param maxPages - the maximum number of page ids to save
+	 * @return the number of page ids saved
+	 * @throws IOException
+	 */
+	public int saveHotSet(File hotSet, int maxPages) throws IOException {
+		List<PageId> hottest = Database.getBufferPool().getHottestPages(tableid, maxPages);
+		File tmp = new File(hotSet.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			dos.writeInt(hottest.size());
+			for(PageId pid : hottest) {
+				BTreePageId id = (BTreePageId) pid;
+				dos.writeInt(id.pgcateg());
+				dos.writeInt(id.pageNumber());
+			}
+		} finally {
+			dos.close();
+		}
+		if(!tmp.renameTo(hotSet)) {
+			hotSet.delete();
+			if(!tmp.renameTo(hotSet)) {
+				throw new IOException("unable to replace " + hotSet);
+			}
+		}
+		return hottest.size();
+	}
+
+	/**
+	 * Read the pages saved by saveHotSet into the buffer pool, in file order and with
+	 * as few reads as possible. The set is ignored if this file was modified after it
+	 * was saved, since the saved page ids may no longer be what they were. Stops 
+	 * early rather than evict anything.
+	 * 
+	 * @param hotSet - the file the page ids were saved to
+	 * @return the number of pages cached
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	public int cacheHotSet(File hotSet) throws IOException, DbException {
+		if(!hotSet.exists() || hotSet.lastModified() <= f.lastModified()) {
+			return 0;
+		}
+		ArrayList<BTreePageId> pids = new ArrayList<BTreePageId>();
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(hotSet)));
+		try {
+			int n = dis.readInt();
+			for(int i = 0; i < n; i++) {
+				int categ = dis.readInt();
+				pids.add(new BTreePageId(tableid, dis.readInt(), categ));
+			}
+		} finally {
+			dis.close();
+		}
+		int cached = 0;
+		for(Page page : readPages(pids)) {
+			if(Database.getBufferPool().cachePage(page, false) == null) {
+				break;
+			}
+			cached++;
+		}
+		return cached;
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -147,18 +447,79 @@ public class BTreeFile implements DbFile {
 	 */
 	public void writePage(Page page) throws IOException {
 		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+		FileChannel fc = channel();
+		long offset = offsetOf(id);
+		while(data.hasRemaining()) {
+			offset += fc.write(data, offset);
+		}
+	}
+
+	/**
+	 * Write several pages of this file, in page number order, with each run of 
+	 * consecutive page numbers written by one gathering write
+	 * 
+	 * @param pages - the bytes of the pages to write
+	 * @return the number of writes made
+	 * @throws IOException
+	 */
+	@Override
+	public int writePages(Map<PageId, byte[]> pages) throws IOException {
+		ArrayList<BTreePageId> sorted = new ArrayList<BTreePageId>();
+		for(PageId pid : pages.keySet()) {
+			sorted.add((BTreePageId) pid);
+		}
+		// the root pointer page sorts first, at the start of the file
+		Collections.sort(sorted, (a, b) -> Long.compare(offsetOf(a), offsetOf(b)));
+		FileChannel fc = channel();
+		int numWrites = 0;
+		int start = 0;
+		while(start < sorted.size()) {
+			// extend the run while the pages are adjacent in the file
+			int end = start + 1;
+			while(end < sorted.size() && sorted.get(end).pgcateg() != BTreePageId.ROOT_PTR 
+					&& sorted.get(end - 1).pgcateg() != BTreePageId.ROOT_PTR
+					&& sorted.get(end).pageNumber() == sorted.get(end - 1).pageNumber() + 1) {
+				end++;
+			}
+			ByteBuffer[] run = new ByteBuffer[end - start];
+			for(int i = start; i < end; i++) {
+				run[i - start] = ByteBuffer.wrap(pages.get(sorted.get(i)));
+			}
+			// a gathering write goes to the channel's position, so writers take turns
+			synchronized(fc) {
+				fc.position(offsetOf(sorted.get(start)));
+				while(run[run.length - 1].hasRemaining()) {
+					fc.write(run);
+				}
+			}
+			numWrites++;
+			start = end;
+		}
+		return numWrites;
+	}
+
+	/**
+	 * Returns the offset of a page in the file
+	 */
+	private long offsetOf(BTreePageId id) {
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			return 0;
 		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		return BTreeRootPtrPage.getPageSize() + (long) (id.pageNumber() - 1) * getPageSize();
+	}
+
+	/**
+	 * Returns the channel pages are written through, opening it on first use
+	 */
+	private synchronized FileChannel channel() throws IOException {
+		if (readOnly) {
+			throw new IOException("BTreeFile " + f.getName() + " is open read-only");
+		}
+		if (channel == null) {
+			channel = new RandomAccessFile(f, "rw").getChannel();
 		}
+		return channel;
 	}
 	
 	/**
@@ -166,7 +527,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ getPageSize());
 	}
 
 	/**
@@ -232,7 +593,8 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		// a lookup that doesn't lock the leaf for writing never dirties a page
+		return findLeafPage(tid, perm == Permissions.READ_ONLY ? null : new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
 	/**
@@ -493,7 +855,8 @@ public class BTreeFile implements DbFile {
 	 * accessed multiple times.
 	 * 
 	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages,
+	 * or null if no page will be fetched with read-write permission
 	 * @param pid - the id of the requested page
 	 * @param perm - the requested permissions on the page
 	 * @return the requested page
@@ -504,7 +867,7 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
-		if(dirtypages.containsKey(pid)) {
+		if(dirtypages != null && dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
 		else {
@@ -516,6 +879,15 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * @throws DbException if this file is open read-only
+	 */
+	private void checkWritable() throws DbException {
+		if (readOnly) {
+			throw new DbException("BTreeFile " + f.getName() + " is open read-only");
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -528,6 +900,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		checkWritable();
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
@@ -985,6 +1358,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
+		checkWritable();
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
@@ -1021,8 +1395,8 @@ public class BTreeFile implements DbFile {
 				// create the root pointer page and the root page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData(newPageSize);
+				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData(getPageSize());
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
@@ -1072,7 +1446,7 @@ public class BTreeFile implements DbFile {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize()) + emptySlot;
 			}
 		}
 
@@ -1083,7 +1457,7 @@ public class BTreeFile implements DbFile {
 				// create the new page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+				byte[] emptyData = BTreeInternalPage.createEmptyPageData(getPageSize());
 				bw.write(emptyData);
 				bw.close();
 				emptyPageNo = numPages();
@@ -1115,16 +1489,17 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
+		// make sure the page is not in the buffer pool or in the local cache, and that
+		// no write of its old contents is still on its way to disk
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+		
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
+		rf.seek(offsetOf(newPageId));
+		rf.write(BTreePage.createEmptyPageData(getPageSize()));
 		rf.close();
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
-		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
 
@@ -1184,7 +1559,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1194,7 +1569,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1210,7 +1585,7 @@ public class BTreeFile implements DbFile {
 		// now headerId should be set with the headerPage containing the slot corresponding to 
 		// emptyPageNo
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize());
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
@@ -1252,6 +1627,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
+	boolean sequentialScan;
+	final ReadAhead readAhead = new ReadAhead((pid, page) -> ((BTreeLeafPage) page).getRightSiblingId());
 
 	/**
 	 * Constructor for this iterator
@@ -1263,6 +1640,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		this.tid = tid;
 	}
 
+	@Override
+	public void setSequentialScan(boolean sequentialScan) {
+		this.sequentialScan = sequentialScan;
+	}
+
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
@@ -1272,6 +1654,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
+		readAhead.reset();
+		readAhead.willRead(curp.getId());
+		readAhead.read(curp, sequentialScan);
 	}
 
 	/**
@@ -1291,8 +1676,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = null;
 			}
 			else {
+				readAhead.willRead(nextp);
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, sequentialScan);
+				readAhead.read(curp, sequentialScan);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1334,6 +1721,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	final ReadAhead readAhead = new ReadAhead((pid, page) -> nextLeafId((BTreeLeafPage) page));
 
 	/**
 	 * Constructor for this iterator
@@ -1363,6 +1751,24 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
 		it = curp.iterator();
+		readAhead.reset();
+		readAhead.willRead(curp.getId());
+		readAhead.read(curp, false);
+	}
+
+	/**
+	 * Returns the id of the leaf after the given one, or null if the search ends 
+	 * within it, so that read-ahead stops where the search does
+	 */
+	private BTreePageId nextLeafId(BTreeLeafPage page) {
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN 
+				|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+			Iterator<Tuple> last = page.reverseIterator();
+			if(last.hasNext() && last.next().getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+				return null;
+			}
+		}
+		return page.getRightSiblingId();
 	}
 
 	/**
@@ -1400,8 +1806,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
+				readAhead.willRead(nextp);
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.read(curp, false);
 				it = curp.iterator();
 			}
 		}
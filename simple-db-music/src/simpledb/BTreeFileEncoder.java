@@ -708,12 +708,30 @@ public class BTreeFileEncoder {
 	 */
 	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header)
 			throws IOException {
+		return convertToRootPtrPage(root, rootCategory, header, 0);
+	}
+
+	/**
+	 * Create a byte array in the format of a BTreeRootPtrPage of a file whose other
+	 * pages are pageSize bytes
+	 * 
+	 * @param root - the page number of the root page
+	 * @param rootCategory - the category of the root page (leaf or internal)
+	 * @param header - the page number of the first header page
+	 * @param pageSize - the size of the file's other pages, 0 for BufferPool.getPageSize()
+	 * @return a byte array which can be passed to the BTreeRootPtrPage constructor
+	 * @throws IOException
+	 * @see BTreeRootPtrPage#encodePageSize(int)
+	 */
+	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header, int pageSize)
+			throws IOException {
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(BTreeRootPtrPage.getPageSize());
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		dos.writeInt(root); // root pointer
-		dos.writeByte((byte) rootCategory); // root page category
+		// root page category, and the page size in the high four bits
+		dos.writeByte((byte) (BTreeRootPtrPage.encodePageSize(pageSize) << 4 | rootCategory));
 
 		dos.writeInt(header); // header pointer
 
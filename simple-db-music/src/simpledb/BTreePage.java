@@ -22,6 +22,8 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	// the size of this page, which is the size of every page of its file but the root pointer page
+	protected final int pageSize;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -52,8 +54,20 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, key, BufferPool.getPageSize());
+	}
+
+	/**
+	 * Create a BTreePage of a file whose pages are pageSize bytes
+	 * 
+	 * @param id - the id of this page
+	 * @param key - the field which the index is keyed on
+	 * @param pageSize - the size of this page
+	 */
+	public BTreePage(BTreePageId id, int key, int pageSize) throws IOException {
 		this.pid = id;
 		this.keyField = key;
+		this.pageSize = pageSize;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
@@ -74,8 +88,22 @@ public abstract class BTreePage implements Page {
 	 * @return The returned ByteArray.
 	 */
 	public static byte[] createEmptyPageData() {
-		int len = BufferPool.getPageSize();
-		return new byte[len]; //all 0
+		return createEmptyPageData(BufferPool.getPageSize());
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreePage of a file whose pages are pageSize bytes.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		return new byte[pageSize]; //all 0
+	}
+
+	@Override
+	public int getSize() {
+		return pageSize;
 	}
 
 	/**
@@ -11,6 +11,9 @@ import java.io.*;
 public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
+	// the smallest page size the root pointer page can record, other than the default
+	private final static int MIN_PAGE_SIZE = 1024;
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -20,6 +23,8 @@ public class BTreeRootPtrPage implements Page {
 
 	private int root; 
 	private int rootCategory;
+	// the file's page size, encoded as in encodePageSize
+	private int pageSizeCode;
 	private int header;
 
 	private byte[] oldData;
@@ -31,20 +36,37 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page.
+	 * <p>
+	 * The category only needs the low four bits of its byte; the high four bits
+	 * record the size of the file's other pages (see encodePageSize). Files written
+	 * before the page size was recorded have zeroes there, which stands for
+	 * BufferPool.getPageSize().
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
+		this(id, data, true);
+	}
+
+	/**
+	 * Construct the BTreeRootPtrPage from a set of bytes of data read from disk, 
+	 * optionally without keeping a before image (see BTreeLeafPage)
+	 */
+	public BTreeRootPtrPage(BTreePageId id, byte[] data, boolean beforeImage) throws IOException {
 		this.pid = id;
 		this.dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int categoryByte = dis.readUnsignedByte();
+		rootCategory = categoryByte & 0x0f;
+		pageSizeCode = categoryByte >> 4;
 
 		// read in the header pointer
 		header = dis.readInt();
 		
-		setBeforeImage();
+		if (beforeImage) {
+			setBeforeImage();
+		}
 	}
 
 	public void setBeforeImage() {
@@ -89,9 +111,9 @@ public class BTreeRootPtrPage implements Page {
 			e.printStackTrace();
 		}
 
-		// write out the category of the root page (leaf or internal)
+		// write out the category of the root page (leaf or internal) and the page size
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (pageSizeCode << 4 | rootCategory));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -126,6 +148,69 @@ public class BTreeRootPtrPage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeRootPtrPage of a file whose other pages are pageSize bytes.
+	 *
+	 * @param pageSize - the size of the file's other pages
+	 * @return The returned ByteArray.
+	 * @see #encodePageSize(int)
+	 */
+	public static byte[] createEmptyPageData(int pageSize) {
+		byte[] data = createEmptyPageData();
+		data[INDEX_SIZE] = (byte) (encodePageSize(pageSize) << 4);
+		return data;
+	}
+
+	/**
+	 * Encodes a page size in the four bits the root pointer page keeps for it: 
+	 * k stands for 512 &lt;&lt; k bytes, so any power of two from 1KB to 16MB can be
+	 * recorded, and 0 for BufferPool.getPageSize(), whatever it is when the file is
+	 * read. A file created with the default page size records 0, so it reads the
+	 * same as a file written before page sizes were recorded.
+	 *
+	 * @param pageSize - the page size, or 0 for the default
+	 * @return the code for the page size
+	 * @throws IllegalArgumentException if the size can't be recorded
+	 */
+	public static int encodePageSize(int pageSize) {
+		if(pageSize == 0) {
+			return 0;
+		}
+		for(int k = 1; k < 16; k++) {
+			if(MIN_PAGE_SIZE << (k - 1) == pageSize) {
+				return k;
+			}
+		}
+		throw new IllegalArgumentException("page size must be a power of two from " + MIN_PAGE_SIZE 
+				+ " to " + (MIN_PAGE_SIZE << 14) + " bytes, not " + pageSize);
+	}
+
+	/**
+	 * Decodes a page size encoded by encodePageSize
+	 */
+	public static int decodePageSize(int code) {
+		return code == 0 ? BufferPool.getPageSize() : MIN_PAGE_SIZE << (code - 1);
+	}
+
+	/**
+	 * Reads the page size recorded in the bytes of a root pointer page, without 
+	 * constructing the page
+	 * @param data - the bytes of the root pointer page
+	 * @return the size of the file's other pages
+	 */
+	public static int readPageSize(byte[] data) {
+		return decodePageSize((data[INDEX_SIZE] & 0xff) >> 4);
+	}
+
+	/**
+	 * Get the size of the pages of this B+ tree other than this one
+	 * @return the page size
+	 */
+	public int getFilePageSize() {
+		return decodePageSize(pageSizeCode);
+	}
+
 	public void markPageDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -141,6 +226,9 @@ public class BTreeRootPtrPage implements Page {
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
+		if (oldData == null) {
+			return this;
+		}
 		try {
 			return new BTreeRootPtrPage(pid,oldData);
 		} catch (IOException e) {
@@ -222,5 +310,14 @@ public class BTreeRootPtrPage implements Page {
 		return PAGE_SIZE;
 	}
 
+	/**
+	 * Root pointer pages count for their own nine bytes against the buffer pool's 
+	 * budget, not for a whole page
+	 */
+	@Override
+	public int getSize() {
+		return PAGE_SIZE;
+	}
+
 }
 
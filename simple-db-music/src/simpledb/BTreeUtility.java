@@ -429,6 +429,17 @@ public class BTreeUtility {
 		return bf;
 	}
 
+	/**
+	 * Like openBTreeFile(int, File, int), but the file can't be modified, see 
+	 * BTreeFile(File, int, TupleDesc, boolean)
+	 */
+	public static BTreeFile openBTreeFileReadOnly(int cols, File f, int keyField) {
+		TupleDesc td = Utility.getTupleDesc(cols);
+		BTreeFile bf = new BTreeFile(f, keyField, td, true);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
 	public static BTreeFile openBTreeFile(int cols, String colPrefix, File f, int keyField) {
 		// create the BTreeFile and add it to the catalog
 		TupleDesc td = Utility.getTupleDesc(cols, colPrefix);
@@ -4,7 +4,17 @@ import java.io.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,8 +24,58 @@ import java.util.Map;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are written back by the pool's PageWriter, in the background: eviction only
+ * queues a dirty page's bytes, and a commit waits for its pages to be written.
+ * <p>
+ * Iterators that move through pages in order have the pages ahead of them read in by
+ * the pool's read-ahead threads (see prefetch and ReadAhead).
+ * <p>
+ * A pool can have a FrameArena under it, which keeps the bytes of the pages it
+ * evicts off the heap; a miss on a page the arena holds rebuilds the page from them
+ * instead of reading it from disk.
+ * <p>
+ * Which page is evicted when the pool is full is up to its ReplacementPolicy, chosen
+ * when the pool is created. Any page may be evicted, but never while it is pinned;
+ * pins are counted, so a page pinned twice stays until it has been unpinned twice.
+ * Whether a page a running transaction modified may be evicted, and so written
+ * back before the transaction ends, is set with setSteal.
+ * Pages a sequential scan reads in are evicted first, oldest first, so that a scan
+ * over a whole table doesn't push out the pages queries keep using.
+ * <p>
+ * The pool's size is a memory budget, in whole pages, and can be changed while the pool
+ * is in use (see setBudgetBytes). Files may have pages of different sizes (see
+ * BTreeFile.getPageSize); each page counts for its own size against the budget, so a
+ * pool of n pages holds n pages of the default size, or fewer bigger ones.
+ * Tables can be given quotas (see setTableQuota): a
+ * table is kept from taking more than its maximum, and its pages are only evicted below
+ * its minimum when no other page can go, so that one big table can't push out the
+ * small ones that other work keeps going back to.
+ * <p>
+ * Any number of threads may read pages concurrently. Cache hits are served from a
+ * concurrent map without locking the pool (the policy may lock briefly to record the
+ * access). A miss reads the page without the pool locked, so misses on different
+ * pages are read in parallel, and threads that miss on a page another thread is
+ * already reading wait for that read rather than make their own. Only putting the
+ * page in the pool, eviction, flushing and the bookkeeping for modified pages
+ * synchronize on the pool. A page stays usable by whoever holds it after it has been
+ * evicted, so readers needn't pin what they read. Pages are shared between threads,
+ * so callers that modify a file must keep readers of that file out while they do.
+ * <p>
+ * The pool's lock guards its budget (maxNumPages) and the bytes it caches, in all
+ * and by table. It also guards the pin counts, the scan list, the pages stolen from
+ * running transactions and changes to the quotas. The budget is also volatile, so it
+ * can be read without the lock. The quotas are in a concurrent map, so the pool can
+ * check whether there are any without the lock. The policy is only told about pages
+ * with the pool locked, except for accesses, which it synchronizes itself. The maps of
+ * cached pages and of reads in progress are concurrent. Pages are only added to or
+ * removed from the cache with the pool locked, and are read without the lock. The
+ * writer and the arena have their own locks and may be called with the pool locked.
+ * Neither calls into the pool while holding its own lock; the writer asks the pool to
+ * clean pages only from its own thread. The steal flag is volatile and set under the
+ * pool's lock, and the access counts and read statistics are atomic.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -27,29 +87,265 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 500;//50;
+    /** The memory budget of a pool of DEFAULT_PAGES pages. */
+    public static final long DEFAULT_BUDGET_BYTES = (long) DEFAULT_PAGES * PAGE_SIZE;
+
+    private static final int PREFETCH_THREADS = 2;
+    // no iterator reads further ahead than this, or an eighth of the pool
+    private static final int MAX_READ_AHEAD = 32;
     
-    private Map<PageId, Page> pages;
-    private ArrayList<PageId> cachedPageIds = new ArrayList<PageId>();
-    private final int maxNumPages;
-    
-    private PageLockManager pageLockManager;
+    private final Map<PageId, Page> pages;
+    // tracks the evictable pages
+    private final ReplacementPolicy policy;
+    // evictable pages read in by sequential scans and not used since, which are kept
+    // from the policy and evicted first; guarded by this, except that scanPageIds may
+    // be read without the lock
+    private final PageList scanPages = new PageList();
+    private final Set<PageId> scanPageIds = ConcurrentHashMap.newKeySet();
+    // the number of pins on each pinned page, guarded by this
+    private final Map<PageId, Integer> pinCounts = new HashMap<PageId, Integer>();
+    // reads in progress, for threads that miss on the same page to share
+    private final Map<PageId, CompletableFuture<Page>> loading = new ConcurrentHashMap<PageId, CompletableFuture<Page>>();
+    private final AtomicLong sharedReads = new AtomicLong();
+    private volatile boolean steal = true;
+    // before images of the pages each running transaction had evicted, to write back
+    // if it aborts; guarded by this
+    private final Map<TransactionId, Map<PageId, Page>> stolenPages = new HashMap<TransactionId, Map<PageId, Page>>();
+    // number of getPage calls for each cached page, to tell which pages are hot
+    private final Map<PageId, AtomicInteger> accessCounts = new ConcurrentHashMap<PageId, AtomicInteger>();
+    private volatile int maxNumPages;
+    // the bytes of the cached pages, by Page.getSize; guarded by this
+    private long cachedBytes;
+    // the number and bytes of the cached pages of each table, guarded by this
+    private final Map<Integer, Integer> tablePages = new HashMap<Integer, Integer>();
+    private final Map<Integer, Long> tableBytes = new HashMap<Integer, Long>();
+    // guarded by this, except that it may be checked for emptiness without the lock
+    private final Map<Integer, TableQuota> quotas = new ConcurrentHashMap<Integer, TableQuota>();
     
-    private boolean useMRU;
+    private final PageLockManager pageLockManager;
+    // null if the pool has no arena
+    private final FrameArena arena;
+    private final PageWriter writer;
+    private final ExecutorService prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+    	Thread t = new Thread(r, "read-ahead");
+    	t.setDaemon(true);
+    	return t;
+    });
+    private final AtomicLong prefetchedPages = new AtomicLong();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting with CLOCK.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+    	this(numPages, ReplacementPolicy.Type.CLOCK);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy how to pick the page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Type policy) {
+    	this(numPages, policy, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages as objects on the heap
+     * and the bytes of up to arenaBytes more off the heap, in a FrameArena.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy how to pick the page to evict
+     * @param arenaBytes the size of the arena, or 0 for none
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Type policy, long arenaBytes) {
         // some code goes here
-    	this.pages = new HashMap<PageId, Page>(numPages);
+    	this.pages = new ConcurrentHashMap<PageId, Page>(numPages);
     	this.maxNumPages = numPages;
+    	this.policy = policy.create(numPages);
     	this.pageLockManager = new PageLockManager();
+    	this.arena = arenaBytes > 0 ? new FrameArena(arenaBytes, pageSize) : null;
+    	this.writer = new PageWriter(this);
     }
-    
-    public void setMRU(boolean on) {
-        useMRU = on;
+
+    private static class TableQuota {
+    	final long minBytes;
+    	final long maxBytes;
+
+    	TableQuota(long minBytes, long maxBytes) {
+    		this.minBytes = minBytes;
+    		this.maxBytes = maxBytes;
+    	}
+    }
+
+    /**
+     * @return the number of pages that fit in a budget of budgetBytes, at least one
+     */
+    public static int pagesFor(long budgetBytes) {
+    	return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / pageSize));
+    }
+
+    /**
+     * @return the maximum number of pages of the default size the pool caches
+     */
+    public int getNumPages() {
+    	return maxNumPages;
+    }
+
+    /**
+     * @return the pool's memory budget
+     */
+    public long getBudgetBytes() {
+    	return (long) maxNumPages * pageSize;
+    }
+
+    /**
+     * Resizes the pool to as many pages as fit in budgetBytes; see resize.
+     */
+    public void setBudgetBytes(long budgetBytes) throws DbException {
+    	resize(pagesFor(budgetBytes));
+    }
+
+    /**
+     * Resizes the pool, evicting pages if it holds more than numPages. The pool keeps
+     * serving pages while it is resized. The pool can't shrink below its pinned pages
+     * and a page to spare, since it could then never read a page in again.
+     *
+     * @throws DbException if the pinned pages don't leave a page to spare in the new
+     * size, in which case the pool keeps its old size; or if the pool can't shrink to
+     * the new size because too many pages are dirty under NO-STEAL, in which case it
+     * keeps the new size and shrinks as pages are evicted
+     */
+    public synchronized void resize(int numPages) throws DbException {
+    	if (numPages < 1) {
+    		throw new IllegalArgumentException("a buffer pool needs at least one page, not " + numPages);
+    	}
+    	long pinned = getPinnedBytes();
+    	if (pinned + pageSize > (long) numPages * pageSize) {
+    		throw new DbException("can't resize the pool to " + numPages + " pages, " + pinned
+    				+ " bytes of pages are pinned");
+    	}
+    	this.maxNumPages = numPages;
+    	policy.resize(numPages);
+    	while (this.cachedBytes > getBudgetBytes()) {
+    		evictPage();
+    	}
+    }
+
+    /**
+     * Gives a table a quota of the pool: it may cache at most maxBytes of pages, and
+     * its pages are only evicted below minBytes when no other page can be. The quota is
+     * in bytes so that it holds across resizes; it is best effort, never a reason to
+     * fail a getPage. Pages of the table past its new maximum are evicted, as far as
+     * they can be.
+     *
+     * @throws DbException if a page of the table couldn't be written back
+     */
+    public synchronized void setTableQuota(int tableId, long minBytes, long maxBytes) throws DbException {
+    	if (minBytes < 0 || maxBytes < minBytes) {
+    		throw new IllegalArgumentException("bad quota for table " + tableId + ": " + minBytes + " to "
+    				+ maxBytes + " bytes");
+    	}
+    	TableQuota quota = new TableQuota(minBytes, maxBytes);
+    	quotas.put(tableId, quota);
+    	while (getCachedBytes(tableId) > quota.maxBytes && evictPage(pid -> pid.getTableId() == tableId)) {
+    	}
+    }
+
+    public synchronized void clearTableQuota(int tableId) {
+    	quotas.remove(tableId);
+    }
+
+    /**
+     * @return the number of pages of the table the pool holds
+     */
+    public synchronized int getNumCachedPages(int tableId) {
+    	Integer n = tablePages.get(tableId);
+    	return n == null ? 0 : n;
+    }
+
+    /**
+     * @return the bytes of the pages of the table the pool holds
+     */
+    public synchronized long getCachedBytes(int tableId) {
+    	Long n = tableBytes.get(tableId);
+    	return n == null ? 0 : n;
+    }
+
+    /**
+     * @return the bytes of all the pages the pool holds
+     */
+    public synchronized long getCachedBytes() {
+    	return cachedBytes;
+    }
+
+    /**
+     * Puts a page in the map of cached pages, keeping count of each table's pages and
+     * their bytes.
+     *
+     * @return the copy of the page it replaced, if any
+     */
+    private Page cache(PageId pid, Page page) {
+    	Page previous = this.pages.put(pid, page);
+    	if (previous == null) {
+    		tablePages.merge(pid.getTableId(), 1, Integer::sum);
+    		tableBytes.merge(pid.getTableId(), (long) page.getSize(), Long::sum);
+    		cachedBytes += page.getSize();
+    	}
+    	return previous;
+    }
+
+    /**
+     * Removes a page from the map of cached pages, keeping count of each table's pages
+     * and their bytes.
+     *
+     * @return the page removed, if it was cached
+     */
+    private Page uncache(PageId pid) {
+    	Page previous = this.pages.remove(pid);
+    	if (previous != null) {
+    		tablePages.computeIfPresent(pid.getTableId(), (t, n) -> n == 1 ? null : n - 1);
+    		long size = previous.getSize();
+    		tableBytes.computeIfPresent(pid.getTableId(), (t, n) -> n == size ? null : n - size);
+    		cachedBytes -= size;
+    	}
+    	return previous;
+    }
+
+    /**
+     * @return whether a page of size bytes would take the table past its maximum quota
+     */
+    private boolean atQuota(int tableId, int size) {
+    	TableQuota quota = quotas.get(tableId);
+    	return quota != null && getCachedBytes(tableId) + size > quota.maxBytes;
+    }
+
+    /**
+     * @return whether a page of size bytes doesn't fit in the pool without evicting;
+     * an empty pool takes any page, so that pages bigger than the budget can be read
+     */
+    private boolean full(int size) {
+    	return !this.pages.isEmpty() && this.cachedBytes + size > getBudgetBytes();
+    }
+
+    public PageWriter getPageWriter() {
+    	return writer;
+    }
+
+    /**
+     * @return the pool's frame arena, or null if it has none
+     */
+    public FrameArena getFrameArena() {
+    	return arena;
+    }
+
+    /**
+     * @return the pool's replacement policy, which also counts its hits and misses
+     */
+    public ReplacementPolicy getReplacementPolicy() {
+    	return policy;
     }
     
     public static int getPageSize() {
@@ -82,6 +378,18 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieves the page like getPage(tid, pid, perm), for a sequential scan if
+     * sequentialScan is set: a page the scan reads in is evicted before any other, and
+     * a page that was cached already is left where the replacement policy has it. A
+     * scanned page that is then requested without the hint is handed to the policy
+     * like any other.
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean sequentialScan)
         throws TransactionAbortedException, DbException {
         // some code goes here
         /*
@@ -96,28 +404,53 @@ public class BufferPool {
     	*/
     	//if (pageLockManager.acquireLock(pid, tid, perm)) {
     		// we have the lock on this page now
-    		if (this.pages.containsKey(pid)) {
-        		return this.pages.get(pid);
-        	}
-        	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    		Page page = file.readPage(pid);
-    		// if cache is full, evict a page
-            //synchronized (cachedPageIds) {
-        	if (this.pages.size() >= this.maxNumPages) {
-        	    if (useMRU) {
-        	        this.evictMRUPage();
-        	    } else {
-        	        this.evictRandomPage();
-        	    }
-        	}
-        	this.pages.put(pid, page);
-        	if (!cachedPageIds.contains(pid)) {
-        		this.cachedPageIds.add(pid);
-        	}
-        	if (useMRU) {
-        	    updateMRU(pid);
-        	}
-        	//}
+    		Page page = this.pages.get(pid);
+    		boolean hit = page != null;
+    		if (page == null) {
+    			CompletableFuture<Page> read = new CompletableFuture<Page>();
+    			CompletableFuture<Page> inFlight = this.loading.putIfAbsent(pid, read);
+    			if (inFlight != null) {
+    				// another thread is reading the page in
+    				page = awaitRead(inFlight);
+    				sharedReads.incrementAndGet();
+    				hit = true;
+    			} else {
+    				try {
+    					// the page may have been put in the pool since it was looked up
+    					page = this.pages.get(pid);
+    					hit = page != null;
+    					if (page == null) {
+    						page = install(pid, readPage(pid), read, sequentialScan);
+    					}
+    					read.complete(page);
+    				} catch (DbException | RuntimeException e) {
+    					read.completeExceptionally(e);
+    					throw e;
+    				} finally {
+    					this.loading.remove(pid, read);
+    				}
+    			}
+    		}
+    		if (hit) {
+    			policy.recordHit();
+    			if (!sequentialScan) {
+    				if (!scanPageIds.isEmpty() && scanPageIds.contains(pid)) {
+    					synchronized (this) {
+    						promoteScanPage(pid);
+    					}
+    				}
+    				policy.access(pid);
+    			}
+    		} else {
+    			policy.recordMiss();
+    		}
+    		if (!sequentialScan) {
+    			countAccess(pid);
+    		}
+    		PageAccessCounter counter = PageAccessCounter.current();
+    		if (counter != null) {
+    			counter.record(page, hit);
+    		}
     		return page;
     	/*} else {
     		// couldn't get lock, so we try again
@@ -125,12 +458,349 @@ public class BufferPool {
     	}*/
     }
     
-    private void updateMRU(PageId pid) {
-        //synchronzied(cachedPageIds) {
-    	if (cachedPageIds.contains(pid)) cachedPageIds.remove(pid);
-    	
-    	cachedPageIds.add(pid);
-        //}
+    /**
+     * Starts reading a page in, in the background, unless it is cached or being read
+     * already. Nothing is counted as a hit or a miss; a getPage for the page later
+     * finds it cached, or waits for the read.
+     *
+     * @param sequentialScan whether the page is read for a sequential scan (see getPage)
+     * @return the page, once it is read in
+     */
+    CompletableFuture<Page> prefetch(PageId pid, boolean sequentialScan) {
+    	Page page = this.pages.get(pid);
+    	if (page != null) {
+    		return CompletableFuture.completedFuture(page);
+    	}
+    	CompletableFuture<Page> read = new CompletableFuture<Page>();
+    	CompletableFuture<Page> inFlight = this.loading.putIfAbsent(pid, read);
+    	if (inFlight != null) {
+    		return inFlight;
+    	}
+    	prefetcher.execute(() -> {
+    		try {
+    			Page p = this.pages.get(pid);
+    			if (p == null) {
+    				p = install(pid, readPage(pid), read, sequentialScan);
+    				prefetchedPages.incrementAndGet();
+    			}
+    			read.complete(p);
+    		} catch (Throwable e) {
+    			read.completeExceptionally(e);
+    		} finally {
+    			this.loading.remove(pid, read);
+    		}
+    	});
+    	return read;
+    }
+
+    /**
+     * @return how many pages an iterator may have read ahead of it
+     */
+    int maxReadAhead() {
+    	return Math.max(1, Math.min(MAX_READ_AHEAD, maxNumPages / 8));
+    }
+
+    /**
+     * @return whether the page is cached
+     */
+    boolean holdsPage(PageId pid) {
+    	return this.pages.containsKey(pid);
+    }
+
+    /**
+     * @return the number of pages read in by read-ahead
+     */
+    public long getPrefetchedPages() {
+    	return prefetchedPages.get();
+    }
+
+    /**
+     * Puts a page this thread read in into the pool, evicting a page if the pool is
+     * full, unless the pool has a copy already (one modified while this one was read)
+     * or the page was discarded while it was read.
+     *
+     * @return the page to hand out
+     */
+    private synchronized Page install(PageId pid, Page page, CompletableFuture<Page> read, boolean sequentialScan)
+    		throws DbException {
+    	if (this.loading.get(pid) != read) {
+    		return page;
+    	}
+    	Page cached = this.pages.get(pid);
+    	if (cached != null) {
+    		return cached;
+    	}
+    	int tableId = pid.getTableId();
+    	// make room within the table's quota, as far as its pages can go
+    	while (!quotas.isEmpty() && atQuota(tableId, page.getSize())
+    			&& evictPage(victim -> victim.getTableId() == tableId)) {
+    	}
+    	// evicts more than one page if modified pages were cached past the pool's size,
+    	// or if the page is bigger than the ones evicted. If only pinned pages are left,
+    	// the pool goes over its size rather than fail the read, as it does for quotas;
+    	// it gets back under as the pages are unpinned
+    	while (full(page.getSize())) {
+    		if (!evictAnyPage()) {
+    			if (getPinnedBytes() < this.cachedBytes) {
+    				// the unpinned pages are dirty under NO-STEAL
+    				throw new DbException(noVictimMessage());
+    			}
+    			break;
+    		}
+    	}
+    	cache(pid, page);
+    	if (sequentialScan && !pinCounts.containsKey(pid)) {
+    		scanPages.addLast(pid);
+    		scanPageIds.add(pid);
+    	} else {
+    		track(page);
+    	}
+    	return page;
+    }
+
+    /**
+     * Reads a page in: from the writer if the page is still waiting to be written,
+     * else from the arena if it holds the page, or else from disk.
+     */
+    private Page readPage(PageId pid) {
+    	Page page = takeNewerCopy(pid);
+    	return page != null ? page : Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /**
+     * @return the page rebuilt from the bytes the writer has yet to write, or else
+     * from the arena's copy, or null if neither has the page. The arena's copy is
+     * taken out of the arena either way, since the page is about to be cached.
+     */
+    private Page takeNewerCopy(PageId pid) {
+    	byte[] data = writer.pendingData(pid);
+    	if (arena != null) {
+    		byte[] kept = arena.take(pid);
+    		if (data == null) {
+    			data = kept;
+    		}
+    	}
+    	return data == null ? null : Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid, data);
+    }
+
+    /**
+     * Waits for another thread's read of a page.
+     */
+    private static Page awaitRead(CompletableFuture<Page> read) throws DbException {
+    	try {
+    		return read.join();
+    	} catch (CompletionException e) {
+    		Throwable cause = e.getCause();
+    		if (cause instanceof DbException) {
+    			throw (DbException) cause;
+    		}
+    		if (cause instanceof RuntimeException) {
+    			throw (RuntimeException) cause;
+    		}
+    		throw new DbException("error reading page: " + cause);
+    	}
+    }
+
+    /**
+     * @return how many misses waited for another thread's read of the page instead of
+     * reading it themselves
+     */
+    public long getSharedReads() {
+    	return sharedReads.get();
+    }
+
+    /**
+     * STEAL, the default, lets the pool evict a page a running transaction modified,
+     * writing it back first: a transaction can modify more pages than the pool holds,
+     * and if it aborts the pages are written back as they were before it. If the
+     * LogFile is logging the transaction, the page's update record is forced to the
+     * log before the page is written. NO-STEAL keeps modified pages cached until they
+     * are flushed, so a transaction whose modified pages fill the pool can't read any
+     * more pages.
+     */
+    public synchronized void setSteal(boolean steal) {
+    	this.steal = steal;
+    	for (Page page : this.pages.values()) {
+    		if (page.isPageDirty() != null) {
+    			if (steal) {
+    				track(page);
+    			} else {
+    				untrack(page.getId());
+    			}
+    		}
+    	}
+    }
+
+    public boolean isSteal() {
+    	return steal;
+    }
+
+    /**
+     * Hands a page just added to the pool, or that just became evictable, to the
+     * policy, if it may be evicted.
+     */
+    private void track(Page page) {
+    	if (!pinCounts.containsKey(page.getId()) && (steal || page.isPageDirty() == null)) {
+    		policy.add(page.getId());
+    	}
+    }
+
+    /**
+     * Hands a page read in by a scan to the policy, now that it has been used again.
+     */
+    private void promoteScanPage(PageId pid) {
+    	if (scanPages.remove(pid)) {
+    		scanPageIds.remove(pid);
+    		policy.add(pid);
+    	}
+    }
+
+    /**
+     * Stops tracking the page, which is no longer evictable or cached.
+     */
+    private void untrack(PageId pid) {
+    	policy.remove(pid);
+    	if (scanPages.remove(pid)) {
+    		scanPageIds.remove(pid);
+    	}
+    }
+
+    private void countAccess(PageId pid) {
+    	AtomicInteger count = accessCounts.get(pid);
+    	if (count == null) {
+    		count = accessCounts.computeIfAbsent(pid, k -> new AtomicInteger());
+    	}
+    	count.incrementAndGet();
+    }
+
+    /**
+     * Adds a page that was read outside of getPage (a prefetch) to the pool, unless a
+     * copy of it is cached already, in which case that copy is kept. A page to pin
+     * makes room for itself as getPage would, evicting unpinned pages; any other page
+     * is only cached if there is room for it. The page may have been read from disk
+     * while a newer version of it was waiting in the writer, or a copy was kept in the
+     * arena; the page cached is then rebuilt from those bytes instead, as on a miss.
+     *
+     * @param page the page to cache
+     * @param pin whether to pin the page, see pinPage
+     * @return the cached copy of the page, or null if the page isn't to be pinned and
+     * the pool is full
+     * @throws DbException if the page is to be pinned and no page can be evicted for it
+     */
+    public synchronized Page cachePage(Page page, boolean pin) throws DbException {
+    	PageId pid = page.getId();
+    	Page cached = this.pages.get(pid);
+    	if (cached == null) {
+    		int tableId = pid.getTableId();
+    		if (pin) {
+    			while (!quotas.isEmpty() && atQuota(tableId, page.getSize())
+    					&& evictPage(victim -> victim.getTableId() == tableId)) {
+    			}
+    			while (full(page.getSize())) {
+    				this.evictPage();
+    			}
+    		} else if (full(page.getSize()) || (!quotas.isEmpty() && atQuota(tableId, page.getSize()))) {
+    			return null;
+    		}
+    		Page newer = takeNewerCopy(pid);
+    		if (newer != null) {
+    			page = newer;
+    		}
+    		cache(pid, page);
+    		cached = page;
+    		if (!pin) {
+    			track(page);
+    		}
+    	}
+    	if (pin) {
+    		pin(pid);
+    	}
+    	return cached;
+    }
+
+    /**
+     * Keeps a page in the pool until it has been unpinned as many times as it was
+     * pinned. The page is read in if it isn't cached yet.
+     */
+    public void pinPage(PageId pid) throws TransactionAbortedException, DbException {
+    	while (true) {
+    		getPage(null, pid, Permissions.READ_ONLY);
+    		synchronized (this) {
+    			// unless it was evicted again before it could be pinned
+    			if (this.pages.containsKey(pid)) {
+    				pin(pid);
+    				return;
+    			}
+    		}
+    	}
+    }
+
+    private void pin(PageId pid) {
+    	pinCounts.merge(pid, 1, Integer::sum);
+    	untrack(pid);
+    }
+
+    /**
+     * Takes one pin off the page. The page can be evicted again once it has no pins left.
+     */
+    public synchronized void unpinPage(PageId pid) {
+    	Integer pins = pinCounts.get(pid);
+    	if (pins == null) {
+    		return;
+    	}
+    	if (pins > 1) {
+    		pinCounts.put(pid, pins - 1);
+    		return;
+    	}
+    	pinCounts.remove(pid);
+    	Page page = this.pages.get(pid);
+    	if (page != null) {
+    		track(page);
+    	}
+    }
+
+    public synchronized int getPinCount(PageId pid) {
+    	Integer pins = pinCounts.get(pid);
+    	return pins == null ? 0 : pins;
+    }
+
+    public synchronized int getNumPinnedPages() {
+    	return pinCounts.size();
+    }
+
+    /**
+     * @return the bytes of the pinned pages
+     */
+    public synchronized long getPinnedBytes() {
+    	long bytes = 0;
+    	for (PageId pid : pinCounts.keySet()) {
+    		Page page = this.pages.get(pid);
+    		if (page != null) {
+    			bytes += page.getSize();
+    		}
+    	}
+    	return bytes;
+    }
+
+    /**
+     * @return the ids of the table's cached pages that match their on-disk version,
+     * most accessed first
+     */
+    public synchronized List<PageId> getHottestPages(int tableId, int maxPages) {
+    	List<PageId> hottest = new ArrayList<PageId>();
+    	for (Map.Entry<PageId, Page> e : this.pages.entrySet()) {
+    		PageId pid = e.getKey();
+    		if (pid.getTableId() == tableId && e.getValue().isPageDirty() == null) {
+    			hottest.add(pid);
+    		}
+    	}
+    	hottest.sort((a, b) -> Integer.compare(accessCount(b), accessCount(a)));
+    	return hottest.size() > maxPages ? new ArrayList<PageId>(hottest.subList(0, maxPages)) : hottest;
+    }
+
+    private int accessCount(PageId pid) {
+    	AtomicInteger count = accessCounts.get(pid);
+    	return count == null ? 0 : count.get();
     }
 
     /**
@@ -173,21 +843,49 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public void transactionComplete(TransactionId tid, boolean commit)
+    public synchronized void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	Map<PageId, Page> stolen = stolenPages.remove(tid);
     	if (commit) {
     		flushPages(tid);
+    		if (stolen != null) {
+    			// pages cleaned ahead of eviction are still cached, with this transaction's
+    			// before images
+    			for (PageId pid : stolen.keySet()) {
+    				Page cachedPage = this.pages.get(pid);
+    				if (cachedPage != null && cachedPage.isPageDirty() == null) {
+    					cachedPage.setBeforeImage();
+    				}
+    			}
+    		}
     	} else {
-    		for (PageId pid : this.cachedPageIds) {
-        		Page cachedPage = this.pages.get(pid);
+    		if (stolen != null) {
+    			// undo the written back pages' changes on disk, and drop any copy cached
+    			for (Page before : stolen.values()) {
+    				PageId pid = before.getId();
+    				writer.enqueue(pid, before.getPageData());
+    				if (arena != null) {
+    					arena.remove(pid);
+    				}
+    				if (uncache(pid) != null) {
+    					untrack(pid);
+    					this.accessCounts.remove(pid);
+    				}
+    			}
+    		}
+    		// whatever is still queued has to be on disk before the pages are read back
+    		writer.flush();
+    		for (Map.Entry<PageId, Page> e : this.pages.entrySet()) {
+    			PageId pid = e.getKey();
+        		Page cachedPage = e.getValue();
         		if (cachedPage.isPageDirty() != null && cachedPage.isPageDirty().equals(tid)) {
         			// restore page to on-disk state
-        			this.pages.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-        			if (useMRU) {
-        			    updateMRU(pid);
-        			}
+        			Page restored = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        			cache(pid, restored);
+        			track(restored);
+        			policy.access(pid);
         		}
         	}
     	}
@@ -214,13 +912,7 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> dirtiedPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for (Page p : dirtiedPages) {
-        	p.markPageDirty(true, tid);
-        	this.pages.put(p.getId(), p);
-        	if (useMRU) {
-        	updateMRU(p.getId());
-        	}
-        }
+        cacheDirtiedPages(tid, dirtiedPages);
     }
 
     /**
@@ -240,13 +932,21 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
     	ArrayList<Page> dirtiedPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+    	cacheDirtiedPages(tid, dirtiedPages);
+    }
+
+    private synchronized void cacheDirtiedPages(TransactionId tid, ArrayList<Page> dirtiedPages) {
     	for (Page p : dirtiedPages) {
-        	p.markPageDirty(true, tid);
-        	this.pages.put(p.getId(), p);
-        	if (useMRU) {
-        	    updateMRU(p.getId());
-        	}
-        }
+    		p.markPageDirty(true, tid);
+    		if (cache(p.getId(), p) == null) {
+    			track(p);
+    		} else if (steal) {
+    			promoteScanPage(p.getId());
+    			policy.access(p.getId());
+    		} else {
+    			untrack(p.getId());
+    		}
+    	}
     }
 
     /**
@@ -254,11 +954,14 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public void flushAllPages() throws IOException {
+    public synchronized void flushAllPages() throws IOException {
         // some code goes here
     	for (PageId pid : this.pages.keySet()) {
     		this.flushPage(pid);
     	}
+    	writer.flush();
+    	// everything is on disk now, evicted pages or not, so there is nothing to undo
+    	stolenPages.clear();
 
     }
 
@@ -270,106 +973,179 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public void discardPage(PageId pid) {
+    public synchronized void discardPage(PageId pid) {
         // some code goes here
-        this.pages.remove(pid);
-        //synchronized (cachedPageIds) {
-        this.cachedPageIds.remove(pid);
-        //}
+        uncache(pid);
+        // a read of the page in progress mustn't put it back
+        this.loading.remove(pid);
+        untrack(pid);
+        this.pinCounts.remove(pid);
+        this.accessCounts.remove(pid);
+        if (arena != null) {
+        	arena.remove(pid);
+        }
+        writer.cancel(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Queues a certain page to be written to disk, and marks it clean
      * @param pid an ID indicating the page to flush
+     * @return the transaction that had modified the page, or null if it was clean
      */
-    private  void flushPage(PageId pid) throws IOException {
+    private  TransactionId flushPage(PageId pid) throws IOException {
         // some code goes here
     	Page p = this.pages.get(pid);
-    	if (p.isPageDirty() != null) {
-    		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+    	if (p == null) {
+    		return null;
+    	}
+    	TransactionId dirtier = p.isPageDirty();
+    	if (dirtier != null) {
+    		LogFile log = Database.getLogFile();
+    		if (log.isLogging(dirtier)) {
+    			// write ahead: the log has to be able to undo the write
+    			log.logWrite(dirtier, p.getBeforeImage(), p);
+    			log.force();
+    		}
+    		writer.enqueue(pid, p.getPageData());
         	p.markPageDirty(false, null);
+        	if (!steal) {
+        		track(p);
+        	}
     	}
+    	return dirtier;
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public  void flushPages(TransactionId tid) throws IOException {
+    public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        //synchronized (cachedPageIds) {
-    	for (PageId pid : this.cachedPageIds) {
-    		Page cachedPage = this.pages.get(pid);
+    	for (Map.Entry<PageId, Page> e : this.pages.entrySet()) {
+    		Page cachedPage = e.getValue();
     		if (cachedPage.isPageDirty() != null && cachedPage.isPageDirty().equals(tid)) {
-    			flushPage(pid);
+    			flushPage(e.getKey());
+    			// what an abort of a later transaction would go back to
+    			cachedPage.setBeforeImage();
     		}
     	}
-        //}
+    	writer.flush();
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Writes back some of the dirty pages that could be evicted, so that evicting them
+     * doesn't have to. Their changes are undone on abort like those of evicted pages.
+     * Called by the page writer when evictions find dirty pages; does nothing under
+     * NO-STEAL.
+     *
+     * @return the number of pages written back
+     */
+    synchronized int cleanDirtyPages() {
+    	if (!steal) {
+    		return 0;
+    	}
+    	int max = Math.max(1, maxNumPages / 8);
+    	int cleaned = 0;
+    	for (Map.Entry<PageId, Page> e : this.pages.entrySet()) {
+    		if (cleaned == max) {
+    			break;
+    		}
+    		Page page = e.getValue();
+    		if (page.isPageDirty() == null || pinCounts.containsKey(e.getKey())) {
+    			continue;
+    		}
+    		Page before = page.getBeforeImage();
+    		try {
+    			TransactionId dirtier = flushPage(e.getKey());
+    			stolenPages.computeIfAbsent(dirtier, k -> new HashMap<PageId, Page>()).putIfAbsent(e.getKey(), before);
+    			cleaned++;
+    		} catch (IOException ex) {
+    			ex.printStackTrace();
+    			break;
+    		}
+    	}
+    	return cleaned;
+    }
+
+    /**
+     * Discards a page from the buffer pool: the oldest page read in by a scan, or
+     * else the one the replacement policy picks, sparing the pages of tables at or
+     * below their minimum quota unless there is no other page to evict.
      */
     private void evictPage() throws DbException {
         // some code goes here
-        //synchronized (cachedPageIds) {
-    	for (PageId pid : this.cachedPageIds) {
-    		Page cachedPage = this.pages.get(pid);
-    		boolean isLeaf = (cachedPage instanceof BTreeLeafPage);
-    		// evict LRU leaf page
-    		if (isLeaf) {
-    			try {
-					this.flushPage(pid);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				this.cachedPageIds.remove(pid);
-    			this.pages.remove(pid);
-    			return;
-    		}
+    	if (!evictAnyPage()) {
+    		throw new DbException(noVictimMessage());
     	}
-    	throw new DbException("All pages are dirty, cannot evict any.");
-        //}
     }
-    
-    private void evictMRUPage() throws DbException {
-        //synchronized (cachedPageIds) {
-    	for (int i = cachedPageIds.size() - 1; i >= 0; i--) {
-    		PageId pid = cachedPageIds.get(i);
-    		Page cachedPage = pages.get(pid);
-    		boolean isLeaf = (cachedPage instanceof BTreeLeafPage);
-    		// evict MRU leaf page
-    		if (isLeaf) {
-    			try {
-					this.flushPage(pid);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				this.cachedPageIds.remove(pid);
-    			this.pages.remove(pid);
-    			return;
-    		}
+
+    /**
+     * Discards a page from the buffer pool, as evictPage does.
+     *
+     * @return false if no page could be evicted
+     */
+    private boolean evictAnyPage() throws DbException {
+    	if (!quotas.isEmpty() && evictPage(this::aboveMinimum)) {
+    		return true;
     	}
-    	throw new DbException("All pages are dirty, cannot evict any.");
+    	return evictPage((Predicate<PageId>) null);
     }
-    
-    private void evictRandomPage() throws DbException {
-        //synchronized (cachedPageIds) {
-    	for (PageId pid : pages.keySet()) {
-    		Page cachedPage = pages.get(pid);
-    		boolean isLeaf = (cachedPage instanceof BTreeLeafPage);
-    		if (isLeaf) {
-    			try {
-					this.flushPage(pid);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				this.cachedPageIds.remove(pid);
-    			this.pages.remove(pid);
-    			return;
-    		}
+
+    private String noVictimMessage() {
+    	return steal ? "All pages are pinned, cannot evict any."
+    			: "All unpinned pages are dirty and the pool is NO-STEAL, cannot evict any.";
+    }
+
+    /**
+     * @return whether the page's table holds more pages than its minimum quota
+     */
+    private boolean aboveMinimum(PageId pid) {
+    	TableQuota quota = quotas.get(pid.getTableId());
+    	return quota == null || getCachedBytes(pid.getTableId()) > quota.minBytes;
+    }
+
+    /**
+     * Discards a page from the buffer pool: the oldest eligible page read in by a scan,
+     * or else the eligible page the replacement policy picks.
+     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pages the policy picks go to the arena, if there is one; scanned pages don't,
+     * so that scans don't flush the arena either.
+     *
+     * @param eligible the pages that may be evicted, or null for any
+     * @return false if there was no page to evict
+     */
+    private boolean evictPage(Predicate<PageId> eligible) throws DbException {
+    	PageId pid = eligible == null ? scanPages.removeFirst() : scanPages.removeFirst(eligible);
+    	boolean scanned = pid != null;
+    	if (scanned) {
+    		scanPageIds.remove(pid);
+    	} else {
+    		pid = eligible == null ? policy.victim() : policy.victim(eligible);
+    	}
+    	if (pid == null) {
+    		return false;
+    	}
+    	Page page = this.pages.get(pid);
+    	Page before = page.isPageDirty() != null ? page.getBeforeImage() : null;
+    	TransactionId dirtier;
+    	try {
+			dirtier = this.flushPage(pid);
+		} catch (IOException e) {
+			// keep the page rather than lose the changes
+			policy.add(pid);
+			throw new DbException("unable to write back page " + pid + " to evict it: " + e);
+		}
+    	if (dirtier != null) {
+    		stolenPages.computeIfAbsent(dirtier, k -> new HashMap<PageId, Page>()).putIfAbsent(pid, before);
+    		// evictions are reaching dirty pages: have the writer clean some ahead of them
+    		writer.requestCleaning();
+    	}
+    	if (arena != null && !scanned) {
+    		arena.put(pid, page.getPageData());
     	}
-    	throw new DbException("All pages are dirty, cannot evict any.");
+    	uncache(pid);
+    	this.accessCounts.remove(pid);
+    	policy.recordEviction();
+    	return true;
     }
 
 }
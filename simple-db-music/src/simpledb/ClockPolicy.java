@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK: tracked pages sit in a ring of frames, each with a reference bit that an
+ * access sets. To pick a victim the hand sweeps the ring, clearing set bits, and
+ * takes the first page whose bit was already clear. An access is a map lookup and a
+ * write of the bit, without locking, so cache hits never contend.
+ */
+class ClockPolicy extends ReplacementPolicy {
+
+	// frame of each tracked page, written with this locked
+	private final Map<PageId, Integer> frameOf = new ConcurrentHashMap<PageId, Integer>();
+	// guarded by this
+	private PageId[] frames;
+	private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+	private int numFramesUsed;
+	private int hand;
+	// replaced, with this locked, when the ring grows; a bit set in the old array
+	// by a concurrent access is lost, which only costs that page its second chance
+	private volatile AtomicIntegerArray referenced;
+
+	ClockPolicy(int numPages) {
+		frames = new PageId[Math.max(1, numPages)];
+		referenced = new AtomicIntegerArray(frames.length);
+	}
+
+	@Override
+	synchronized void add(PageId pid) {
+		if (frameOf.containsKey(pid)) {
+			return;
+		}
+		Integer frame = freeFrames.poll();
+		if (frame == null) {
+			if (numFramesUsed == frames.length) {
+				grow();
+			}
+			frame = numFramesUsed++;
+		}
+		frames[frame] = pid;
+		referenced.set(frame, 0);
+		frameOf.put(pid, frame);
+	}
+
+	/**
+	 * Doubles the ring, for pools that hold more pages than they were sized for (the
+	 * pool caches every page a transaction dirties, full or not).
+	 */
+	private void grow() {
+		AtomicIntegerArray bits = new AtomicIntegerArray(frames.length * 2);
+		for (int i = 0; i < frames.length; i++) {
+			bits.set(i, referenced.get(i));
+		}
+		frames = Arrays.copyOf(frames, frames.length * 2);
+		referenced = bits;
+	}
+
+	@Override
+	void access(PageId pid) {
+		Integer frame = frameOf.get(pid);
+		if (frame != null) {
+			AtomicIntegerArray bits = referenced;
+			if (frame < bits.length()) {
+				bits.lazySet(frame, 1);
+			}
+		}
+	}
+
+	@Override
+	synchronized void remove(PageId pid) {
+		Integer frame = frameOf.remove(pid);
+		if (frame != null) {
+			frames[frame] = null;
+			freeFrames.push(frame);
+		}
+	}
+
+	@Override
+	synchronized PageId victim(Predicate<PageId> eligible) {
+		if (frameOf.isEmpty()) {
+			return null;
+		}
+		// every pass clears the bits it skips, so this ends within two turns, unless
+		// no page is eligible
+		for (int steps = 2 * numFramesUsed + 1; steps > 0; steps--) {
+			if (hand >= numFramesUsed) {
+				hand = 0;
+			}
+			PageId pid = frames[hand];
+			if (pid != null && eligible.test(pid)) {
+				if (referenced.get(hand) == 0) {
+					remove(pid);
+					hand++;
+					return pid;
+				}
+				referenced.set(hand, 0);
+			}
+			hand++;
+		}
+		return null;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.CLOCK;
+	}
+}
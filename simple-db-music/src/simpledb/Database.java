@@ -55,11 +55,28 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, ReplacementPolicy.Type.CLOCK);
+    }
+
+    /**
+     * Replaces the buffer pool with an empty one of the given size that evicts with
+     * the given policy, and returns it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Type policy) {
+        return resetBufferPool(pages, policy, 0);
+    }
+
+    /**
+     * Replaces the buffer pool with an empty one of the given size that evicts with
+     * the given policy and keeps the bytes of evicted pages in a frame arena of
+     * arenaBytes (none if 0), and returns it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Type policy, long arenaBytes) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policy, arenaBytes));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
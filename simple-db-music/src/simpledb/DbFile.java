@@ -19,6 +19,16 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Builds the specified page from its bytes, as returned by getPageData, instead
+     * of reading them from disk.
+     *
+     * @return the page, or null if this file can't build pages from bytes
+     */
+    public default Page decodePage(PageId id, byte[] data) {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -28,6 +38,23 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Writes several pages to disk, given their bytes as returned by getPageData.
+     * Files may sort the pages and write runs of adjacent pages at once; the default
+     * writes them one at a time, building each with decodePage, so a file that can't
+     * build pages from bytes has to override it.
+     *
+     * @param pages the bytes of each page to write, all pages of this file
+     * @return the number of writes made
+     * @throws IOException if a write fails
+     */
+    public default int writePages(Map<PageId, byte[]> pages) throws IOException {
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            writePage(decodePage(e.getKey(), e.getValue()));
+        }
+        return pages.size();
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -37,4 +37,12 @@ public interface DbFileIterator{
      * Closes the iterator.
      */
     public void close();
+
+    /**
+     * Hints that the iterator is one pass over pages that won't be needed again soon,
+     * like a full scan, so that the buffer pool evicts the pages it reads in before
+     * the pages other queries use. Call before open. Iterators may ignore it.
+     */
+    public default void setSequentialScan(boolean sequentialScan) {
+    }
 }
@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A second level of the buffer pool: the raw bytes of clean pages the pool evicted,
+ * kept off the Java heap in frames of direct ByteBuffers. A page found here is
+ * rebuilt from its bytes instead of read from disk, and leaves the arena: a page is
+ * either cached by the pool or held by the arena, never both, so the arena never has
+ * to follow changes to pages the pool holds. Cached Page objects are object
+ * graphs (a leaf is an array of tuples of fields, plus its before image) that the
+ * garbage collector has to trace, so the pool keeps only the hottest pages as objects
+ * and the arena holds the rest, as many gigabytes of them as it is given, without
+ * growing the heap or the collector's work. Direct memory is limited by the JVM's
+ * -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ * <p>
+ * The arena evicts with CLOCK. A page bigger than a frame (see BTreeFile.getPageSize)
+ * is kept in as many frames as it takes, not necessarily adjacent ones; pages that
+ * aren't a whole number of frames, such as root pointer pages, are never kept. All
+ * methods synchronize on the arena.
+ */
+public class FrameArena {
+
+	// frames per slab are limited so that a slab stays under 2GB, a ByteBuffer's limit
+	private static final long MAX_SLAB_BYTES = 1L << 30;
+
+	private final int frameSize;
+	private final int numFrames;
+	private final int framesPerSlab;
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	// the frames holding each page, in order
+	private final Map<PageId, int[]> framesOf = new HashMap<PageId, int[]>();
+	private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+	private int numFramesUsed;
+	private final ReplacementPolicy clock;
+
+	/**
+	 * Creates an arena of capacityBytes, rounded down to whole frames of frameSize
+	 * bytes. The memory is allocated up front.
+	 */
+	public FrameArena(long capacityBytes, int frameSize) {
+		if (capacityBytes < frameSize) {
+			throw new IllegalArgumentException("frame arena of " + capacityBytes + " bytes can't hold a "
+					+ frameSize + " byte page");
+		}
+		long frames = capacityBytes / frameSize;
+		if (frames > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("frame arena of " + capacityBytes + " bytes has too many frames");
+		}
+		this.frameSize = frameSize;
+		this.numFrames = (int) frames;
+		this.framesPerSlab = (int) Math.max(1, MAX_SLAB_BYTES / frameSize);
+		for (long allocated = 0; allocated < numFrames; allocated += framesPerSlab) {
+			int slabFrames = (int) Math.min(framesPerSlab, numFrames - allocated);
+			slabs.add(ByteBuffer.allocateDirect(slabFrames * frameSize));
+		}
+		this.clock = ReplacementPolicy.Type.CLOCK.create(numFrames);
+	}
+
+	/**
+	 * Takes the page out of the arena, as the pool is about to cache it again.
+	 *
+	 * @return a copy of the page's bytes, or null if the arena doesn't hold the page
+	 */
+	synchronized byte[] take(PageId pid) {
+		int[] frames = framesOf.remove(pid);
+		if (frames == null) {
+			clock.recordMiss();
+			return null;
+		}
+		clock.recordHit();
+		clock.remove(pid);
+		byte[] data = new byte[frames.length * frameSize];
+		for (int i = 0; i < frames.length; i++) {
+			ByteBuffer slab = slabOf(frames[i]);
+			slab.position(offsetOf(frames[i]));
+			slab.get(data, i * frameSize, frameSize);
+			freeFrames.push(frames[i]);
+		}
+		return data;
+	}
+
+	/**
+	 * Stores the page's bytes, which must be what is on disk, replacing any it held,
+	 * and evicting other pages if the arena is full. Pages that aren't a whole number
+	 * of frames, or are bigger than the arena, are ignored.
+	 */
+	synchronized void put(PageId pid, byte[] data) {
+		int n = data.length / frameSize;
+		if (n == 0 || data.length % frameSize != 0 || n > numFrames) {
+			return;
+		}
+		int[] frames = framesOf.get(pid);
+		if (frames == null || frames.length != n) {
+			remove(pid);
+			frames = new int[n];
+			for (int i = 0; i < n; i++) {
+				frames[i] = freeFrame();
+			}
+			framesOf.put(pid, frames);
+			clock.add(pid);
+		}
+		for (int i = 0; i < n; i++) {
+			ByteBuffer slab = slabOf(frames[i]);
+			slab.position(offsetOf(frames[i]));
+			slab.put(data, i * frameSize, frameSize);
+		}
+	}
+
+	/**
+	 * @return a frame no page holds, evicting pages until there is one
+	 */
+	private int freeFrame() {
+		while (freeFrames.isEmpty()) {
+			if (numFramesUsed < numFrames) {
+				return numFramesUsed++;
+			}
+			PageId victim = clock.victim();
+			for (int frame : framesOf.remove(victim)) {
+				freeFrames.push(frame);
+			}
+			clock.recordEviction();
+		}
+		return freeFrames.pop();
+	}
+
+	/**
+	 * Forgets the page, whose bytes on disk are changing or gone.
+	 */
+	synchronized void remove(PageId pid) {
+		int[] frames = framesOf.remove(pid);
+		if (frames != null) {
+			clock.remove(pid);
+			for (int frame : frames) {
+				freeFrames.push(frame);
+			}
+		}
+	}
+
+	private ByteBuffer slabOf(int frame) {
+		return slabs.get(frame / framesPerSlab);
+	}
+
+	private int offsetOf(int frame) {
+		return (frame % framesPerSlab) * frameSize;
+	}
+
+	public long getCapacityBytes() {
+		return (long) numFrames * frameSize;
+	}
+
+	public synchronized int getNumPages() {
+		return framesOf.size();
+	}
+
+	/**
+	 * @return the arena's hit, miss and eviction counts
+	 */
+	public ReplacementPolicy getStats() {
+		return clock;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("frame arena: %d pages in %d of %d frames (%d MB off-heap), hit ratio %.3f (%d hits, %d misses, %d evictions)",
+				framesOf.size(), numFramesUsed - freeFrames.size(), numFrames, getCapacityBytes() >> 20, clock.getHitRatio(), clock.getHits(),
+				clock.getMisses(), clock.getEvictions());
+	}
+}
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,6 +19,8 @@ public class HeapFile implements DbFile {
 	
 	private final File file;
 	private final TupleDesc TD;
+	// opened by the first write and kept open for the next ones
+	private FileChannel channel;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -86,14 +90,66 @@ public class HeapFile implements DbFile {
 		}
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public Page decodePage(PageId pid, byte[] data) {
+        try {
+            return new HeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
-        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
-		int start = BufferPool.getPageSize() * page.getId().pageNumber();
-		raf.seek(start);
-		raf.write(page.getPageData());
-		raf.close();
+        ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+        FileChannel fc = channel();
+        long offset = (long) BufferPool.getPageSize() * page.getId().pageNumber();
+        while (data.hasRemaining()) {
+            offset += fc.write(data, offset);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public int writePages(Map<PageId, byte[]> pages) throws IOException {
+        ArrayList<PageId> sorted = new ArrayList<PageId>(pages.keySet());
+        Collections.sort(sorted, (a, b) -> Integer.compare(a.pageNumber(), b.pageNumber()));
+        FileChannel fc = channel();
+        int numWrites = 0;
+        int start = 0;
+        while (start < sorted.size()) {
+            // extend the run while the page numbers are consecutive
+            int end = start + 1;
+            while (end < sorted.size() && sorted.get(end).pageNumber() == sorted.get(end - 1).pageNumber() + 1) {
+                end++;
+            }
+            ByteBuffer[] run = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++) {
+                run[i - start] = ByteBuffer.wrap(pages.get(sorted.get(i)));
+            }
+            // a gathering write goes to the channel's position, so writers take turns
+            synchronized (fc) {
+                fc.position((long) BufferPool.getPageSize() * sorted.get(start).pageNumber());
+                while (run[run.length - 1].hasRemaining()) {
+                    fc.write(run);
+                }
+            }
+            numWrites++;
+            start = end;
+        }
+        return numWrites;
+    }
+
+    /**
+     * Returns the channel pages are written through, opening it on first use.
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (this.channel == null) {
+            this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        }
+        return this.channel;
     }
 
     /**
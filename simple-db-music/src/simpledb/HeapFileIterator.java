@@ -9,16 +9,27 @@ public class HeapFileIterator implements DbFileIterator {
 	private final int hid;
 	private final int numPages;
 	int currentPage = 0;
+	private boolean sequentialScan;
+	private final ReadAhead readAhead;
 	
     public HeapFileIterator(TransactionId tid, int hid, int numPages) {
     	this.tid = tid;
     	this.hid = hid;
     	this.numPages = numPages;
+    	this.readAhead = new ReadAhead((pid, page) ->
+    			pid.pageNumber() + 1 < numPages ? new HeapPageId(hid, pid.pageNumber() + 1) : null);
     }	
 
+    @Override
+    public void setSequentialScan(boolean sequentialScan) {
+    	this.sequentialScan = sequentialScan;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
 		HeapPageId pid = new HeapPageId(this.hid, this.currentPage);
-		HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		readAhead.willRead(pid);
+		HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, sequentialScan);
+		readAhead.read(p, sequentialScan);
 		i = p.iterator();
     }
 
@@ -33,7 +44,7 @@ public class HeapFileIterator implements DbFileIterator {
         int cp = this.currentPage;
         while (cp < numPages - 1) {
         	HeapPageId pid = new HeapPageId(this.hid, cp + 1);
-    		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+    		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, sequentialScan);
     		if (page.getNumEmptySlots() >= page.numSlots) {
     			cp++;
     		} else {
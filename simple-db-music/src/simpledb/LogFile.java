@@ -186,6 +186,14 @@ public class LogFile {
         tidToFirstLogRecord.remove(tid.getId());
     }
 
+    /**
+     * @return whether the log has records of the transaction and hasn't recorded
+     * its end yet
+     */
+    synchronized boolean isLogging(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
         @param tid The transaction performing the write
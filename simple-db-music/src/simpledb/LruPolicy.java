@@ -0,0 +1,45 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * LRU, or MRU, over a recency list: every access moves the page to the tail, and the
+ * victim is the head (least recently used) or the tail (most recently used).
+ */
+class LruPolicy extends ReplacementPolicy {
+
+	private final boolean evictMostRecent;
+	// least recently used first, guarded by this
+	private final PageList recency = new PageList();
+
+	LruPolicy(boolean evictMostRecent) {
+		this.evictMostRecent = evictMostRecent;
+	}
+
+	@Override
+	synchronized void add(PageId pid) {
+		if (!recency.contains(pid)) {
+			recency.addLast(pid);
+		}
+	}
+
+	@Override
+	synchronized void access(PageId pid) {
+		recency.moveToLast(pid);
+	}
+
+	@Override
+	synchronized void remove(PageId pid) {
+		recency.remove(pid);
+	}
+
+	@Override
+	synchronized PageId victim(Predicate<PageId> eligible) {
+		return evictMostRecent ? recency.removeLast(eligible) : recency.removeFirst(eligible);
+	}
+
+	@Override
+	public Type getType() {
+		return evictMostRecent ? Type.MRU : Type.LRU;
+	}
+}
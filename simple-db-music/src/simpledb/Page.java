@@ -56,4 +56,12 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * @return the size of this page on disk, which is what it counts for against
+     * the buffer pool's budget
+     */
+    public default int getSize() {
+        return BufferPool.getPageSize();
+    }
 }
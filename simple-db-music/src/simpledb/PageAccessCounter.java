@@ -0,0 +1,55 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the pages BufferPool.getPage hands out to the threads the counter is installed
+ * on: cache hits, misses (pages read from disk), and B+ tree leaf pages. Used to trace
+ * what a single query cost; threads without a counter aren't counted at all, so the
+ * pool pays one thread-local lookup per getPage when nobody is tracing.
+ * <p>
+ * A counter may be installed on several threads working for the same query at once.
+ */
+public class PageAccessCounter {
+
+	private static final ThreadLocal<PageAccessCounter> CURRENT = new ThreadLocal<PageAccessCounter>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong leafPages = new AtomicLong();
+
+	/**
+	 * Counts the calling thread's page accesses with counter, or stops counting them
+	 * if counter is null.
+	 */
+	public static void install(PageAccessCounter counter) {
+		if (counter == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(counter);
+		}
+	}
+
+	static PageAccessCounter current() {
+		return CURRENT.get();
+	}
+
+	void record(Page page, boolean hit) {
+		(hit ? hits : misses).incrementAndGet();
+		if (page instanceof BTreeLeafPage) {
+			leafPages.incrementAndGet();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getLeafPages() {
+		return leafPages.get();
+	}
+}
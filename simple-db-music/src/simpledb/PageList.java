@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A doubly linked list of page ids with a map from id to node, so that pages can be
+ * appended, looked up, moved to the tail and removed in O(1). Not thread-safe.
+ */
+class PageList {
+
+	private static class Node {
+		final PageId pid;
+		Node prev;
+		Node next;
+
+		Node(PageId pid) {
+			this.pid = pid;
+		}
+	}
+
+	private final Map<PageId, Node> nodes = new HashMap<PageId, Node>();
+	private Node head;
+	private Node tail;
+
+	boolean contains(PageId pid) {
+		return nodes.containsKey(pid);
+	}
+
+	int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Appends the page, or moves it to the tail if it is in the list already.
+	 */
+	void addLast(PageId pid) {
+		Node node = nodes.get(pid);
+		if (node == null) {
+			node = new Node(pid);
+			nodes.put(pid, node);
+		} else if (node == tail) {
+			return;
+		} else {
+			unlink(node);
+		}
+		node.prev = tail;
+		if (tail == null) {
+			head = node;
+		} else {
+			tail.next = node;
+		}
+		tail = node;
+	}
+
+	/**
+	 * Moves the page to the tail if it is in the list.
+	 *
+	 * @return whether the page is in the list
+	 */
+	boolean moveToLast(PageId pid) {
+		if (!nodes.containsKey(pid)) {
+			return false;
+		}
+		addLast(pid);
+		return true;
+	}
+
+	boolean remove(PageId pid) {
+		Node node = nodes.remove(pid);
+		if (node == null) {
+			return false;
+		}
+		unlink(node);
+		return true;
+	}
+
+	/**
+	 * @return the page at the head, which is removed, or null if the list is empty
+	 */
+	PageId removeFirst() {
+		if (head == null) {
+			return null;
+		}
+		PageId pid = head.pid;
+		remove(pid);
+		return pid;
+	}
+
+	/**
+	 * @return the page at the tail, which is removed, or null if the list is empty
+	 */
+	PageId removeLast() {
+		if (tail == null) {
+			return null;
+		}
+		PageId pid = tail.pid;
+		remove(pid);
+		return pid;
+	}
+
+	/**
+	 * @return the page nearest the head that is eligible, which is removed, or null
+	 * if there is none
+	 */
+	PageId removeFirst(Predicate<PageId> eligible) {
+		for (Node node = head; node != null; node = node.next) {
+			if (eligible.test(node.pid)) {
+				PageId pid = node.pid;
+				remove(pid);
+				return pid;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the page nearest the tail that is eligible, which is removed, or null
+	 * if there is none
+	 */
+	PageId removeLast(Predicate<PageId> eligible) {
+		for (Node node = tail; node != null; node = node.prev) {
+			if (eligible.test(node.pid)) {
+				PageId pid = node.pid;
+				remove(pid);
+				return pid;
+			}
+		}
+		return null;
+	}
+
+	private void unlink(Node node) {
+		if (node.prev == null) {
+			head = node.next;
+		} else {
+			node.prev.next = node.next;
+		}
+		if (node.next == null) {
+			tail = node.prev;
+		} else {
+			node.next.prev = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+	}
+}
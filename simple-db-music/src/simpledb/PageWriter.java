@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the buffer pool's pages to disk, from a background thread. The pool queues
+ * the bytes of the pages it writes back instead of writing them itself, so evicting a
+ * dirty page never waits on the disk; a commit, which has to be durable, flushes the
+ * queue and waits for it (FORCE). When evictions start finding dirty pages, the
+ * writer also cleans dirty pages ahead of them (see BufferPool.cleanDirtyPages).
+ * <p>
+ * The queue holds at most one version of each page, the latest. A batch is taken off
+ * the queue as a whole and written a file at a time, in page number order, with runs
+ * of adjacent pages merged into single gathering writes (see DbFile.writePages). Until
+ * its write completes, a page queued or in flight can be read back from the writer, so
+ * a page evicted before it reaches the disk is never read stale.
+ * <p>
+ * Only one batch is written at a time, so writes land in the order they were queued.
+ */
+public class PageWriter implements Runnable {
+
+	private final BufferPool pool;
+	// held while writing a batch
+	private final Object writeLock = new Object();
+	// guarded by this
+	private Map<PageId, byte[]> queued = new HashMap<PageId, byte[]>();
+	private final Map<PageId, byte[]> inFlight = new HashMap<PageId, byte[]>();
+	private boolean cleaningRequested;
+	private final AtomicLong pagesWritten = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong pagesCleaned = new AtomicLong();
+
+	PageWriter(BufferPool pool) {
+		this.pool = pool;
+		Thread thread = new Thread(this, "page writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues the page's bytes to be written, replacing any version of the page
+	 * queued earlier.
+	 */
+	synchronized void enqueue(PageId pid, byte[] data) {
+		queued.put(pid, data);
+		notifyAll();
+	}
+
+	/**
+	 * @return the bytes queued or being written for the page, or null if there are none
+	 */
+	synchronized byte[] pendingData(PageId pid) {
+		byte[] data = queued.get(pid);
+		return data != null ? data : inFlight.get(pid);
+	}
+
+	/**
+	 * Drops the queued write of a page whose bytes on disk are about to be replaced or
+	 * are no longer needed, and waits for any write of it in flight.
+	 */
+	void cancel(PageId pid) {
+		boolean writing;
+		synchronized (this) {
+			queued.remove(pid);
+			writing = inFlight.containsKey(pid);
+		}
+		if (writing) {
+			synchronized (writeLock) {
+				// the batch writing the page is done once we hold the lock
+			}
+		}
+	}
+
+	/**
+	 * Asks the writer to clean some of the pool's dirty pages.
+	 */
+	synchronized void requestCleaning() {
+		cleaningRequested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Writes everything queued so far, and waits until it is on disk.
+	 */
+	void flush() throws IOException {
+		synchronized (writeLock) {
+			writeBatch();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			boolean clean;
+			synchronized (this) {
+				while (queued.isEmpty() && !cleaningRequested) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				clean = cleaningRequested;
+				cleaningRequested = false;
+			}
+			if (clean) {
+				pagesCleaned.addAndGet(pool.cleanDirtyPages());
+			}
+			synchronized (writeLock) {
+				try {
+					writeBatch();
+				} catch (IOException e) {
+					// the batch was put back; a flush will report the error
+					e.printStackTrace();
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the queue and writes it, a file at a time. On failure the pages not
+	 * written are queued again, unless a newer version was queued since. Called
+	 * holding writeLock.
+	 */
+	private void writeBatch() throws IOException {
+		Map<PageId, byte[]> batch;
+		synchronized (this) {
+			if (queued.isEmpty()) {
+				return;
+			}
+			batch = queued;
+			queued = new HashMap<PageId, byte[]>();
+			inFlight.putAll(batch);
+		}
+		Map<Integer, Map<PageId, byte[]>> byTable = new HashMap<Integer, Map<PageId, byte[]>>();
+		for (Map.Entry<PageId, byte[]> e : batch.entrySet()) {
+			byTable.computeIfAbsent(e.getKey().getTableId(), k -> new HashMap<PageId, byte[]>()).put(e.getKey(), e.getValue());
+		}
+		List<Map<PageId, byte[]>> written = new ArrayList<Map<PageId, byte[]>>();
+		try {
+			for (Map.Entry<Integer, Map<PageId, byte[]>> e : byTable.entrySet()) {
+				writes.addAndGet(Database.getCatalog().getDatabaseFile(e.getKey()).writePages(e.getValue()));
+				pagesWritten.addAndGet(e.getValue().size());
+				written.add(e.getValue());
+			}
+		} finally {
+			synchronized (this) {
+				for (Map<PageId, byte[]> tablePages : byTable.values()) {
+					boolean done = written.contains(tablePages);
+					for (Map.Entry<PageId, byte[]> e : tablePages.entrySet()) {
+						inFlight.remove(e.getKey());
+						if (!done) {
+							queued.putIfAbsent(e.getKey(), e.getValue());
+						}
+					}
+				}
+			}
+			batches.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of pages queued or being written
+	 */
+	public synchronized int getQueueDepth() {
+		return queued.size() + inFlight.size();
+	}
+
+	public long getPagesWritten() {
+		return pagesWritten.get();
+	}
+
+	/**
+	 * @return the number of write calls made, each writing one run of adjacent pages
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return the number of dirty pages written ahead of eviction
+	 */
+	public long getPagesCleaned() {
+		return pagesCleaned.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("page writer: queue depth %d, %d pages written in %d writes (%d batches), %d cleaned ahead of eviction",
+				getQueueDepth(), getPagesWritten(), getWrites(), getBatches(), getPagesCleaned());
+	}
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * Read-ahead for one iterator. The iterator reports each page it moves to, and once
+ * it has moved to the next page in order twice in a row, pages further along are
+ * read in the background (see BufferPool.prefetch), so that the iterator finds them
+ * cached. The next page is given by a successor function: the right sibling of a
+ * B+ tree leaf, which is only known once the leaf has been read, so those reads go
+ * one after the other down the chain, or the next page number of a heap file.
+ * <p>
+ * How far ahead to read adapts to how fast the iterator consumes pages: it starts at
+ * two pages and doubles whenever the iterator gets to a page whose read hasn't
+ * finished, and halves whenever a page read ahead was evicted before the iterator got
+ * to it, up to BufferPool.maxReadAhead pages.
+ * <p>
+ * Not thread safe; like the iterator, it is used by one thread at a time.
+ */
+class ReadAhead {
+
+	private static final int INITIAL_WINDOW = 2;
+	// sequential moves before reading ahead; a short posting list isn't worth it
+	private static final int MIN_RUN = 2;
+
+	private final BiFunction<PageId, Page, PageId> successor;
+	// reads issued for the pages after the current one, in order
+	private final ArrayDeque<CompletableFuture<Page>> ahead = new ArrayDeque<CompletableFuture<Page>>();
+	private CompletableFuture<Page> tail;
+	private PageId expected;
+	private int run;
+	private int window = INITIAL_WINDOW;
+
+	/**
+	 * @param successor gives the page after a page, from its id and the page itself,
+	 * or null if it is the last
+	 */
+	ReadAhead(BiFunction<PageId, Page, PageId> successor) {
+		this.successor = successor;
+	}
+
+	/**
+	 * Forgets the pages seen and read ahead so far, as the iterator starts over.
+	 */
+	void reset() {
+		ahead.clear();
+		tail = null;
+		expected = null;
+		run = 0;
+	}
+
+	/**
+	 * Called before the iterator gets a page.
+	 */
+	void willRead(PageId pid) {
+		if (expected == null || !expected.equals(pid)) {
+			// not the next page: start over from this one
+			reset();
+			run = 1;
+			return;
+		}
+		run++;
+		CompletableFuture<Page> read = ahead.poll();
+		if (read == null) {
+			return;
+		}
+		if (!read.isDone()) {
+			// the iterator caught up with the reads
+			window = Math.min(window * 2, Database.getBufferPool().maxReadAhead());
+		} else if (!Database.getBufferPool().holdsPage(pid)) {
+			// read so far ahead that the page was evicted again
+			window = Math.max(1, window / 2);
+		}
+		if (ahead.isEmpty()) {
+			tail = null;
+		}
+	}
+
+	/**
+	 * Called with the page the iterator got; reads ahead of it if the iterator is
+	 * moving through pages in order.
+	 *
+	 * @param sequentialScan whether to read the pages for a sequential scan (see
+	 * BufferPool.getPage)
+	 */
+	void read(Page page, boolean sequentialScan) {
+		expected = successor.apply(page.getId(), page);
+		if (run < MIN_RUN || expected == null) {
+			return;
+		}
+		BufferPool pool = Database.getBufferPool();
+		while (ahead.size() < window) {
+			if (tail != null && tail.isDone() && (tail.isCompletedExceptionally() || tail.getNow(null) == null)) {
+				// the chain ended, or a read failed; the iterator will see why itself
+				return;
+			}
+			CompletableFuture<Page> from = tail != null ? tail : CompletableFuture.completedFuture(page);
+			tail = from.thenCompose(p -> {
+				PageId next = p == null ? null : successor.apply(p.getId(), p);
+				return next == null ? CompletableFuture.completedFuture((Page) null) : pool.prefetch(next, sequentialScan);
+			});
+			ahead.add(tail);
+		}
+	}
+}
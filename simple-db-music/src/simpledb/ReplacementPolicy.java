@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Decides which page BufferPool evicts when it is full. A policy only tracks the
+ * pages that may be evicted (unpinned pages, and under NO-STEAL only clean ones): the
+ * pool adds a page when it becomes evictable, reports every access to it, and removes
+ * it when it is pinned, dirtied under NO-STEAL or discarded, so that picking a victim
+ * never has to skip over pages that can't go.
+ * Every operation is O(1) (amortized, for CLOCK), whatever the size of the pool.
+ * Pages read by sequential scans are kept apart by the pool and never reach the policy
+ * unless something else uses them (see BufferPool.getPage).
+ * <p>
+ * A policy also counts the pool's hits, misses and evictions, to compare policies on
+ * a workload. Access may be called by any number of threads at once, without the
+ * pool's lock; the other operations are called with the pool locked.
+ */
+public abstract class ReplacementPolicy {
+
+	public enum Type {
+		/** evict the least recently used page */
+		LRU,
+		/** evict the most recently used page; good for repeated scans larger than the pool */
+		MRU,
+		/** evict a page not referenced since the clock hand last passed it; hits take no lock */
+		CLOCK,
+		/** 2Q: pages seen once wait in a FIFO and only pages used again get into the LRU list */
+		TWO_Q,
+		/** ARC: like 2Q, but the split between once-used and reused pages adapts to the workload */
+		ARC;
+
+		public ReplacementPolicy create(int numPages) {
+			switch (this) {
+			case LRU:
+				return new LruPolicy(false);
+			case MRU:
+				return new LruPolicy(true);
+			case CLOCK:
+				return new ClockPolicy(numPages);
+			case TWO_Q:
+				return new TwoQueuePolicy(numPages);
+			case ARC:
+				return new ArcPolicy(numPages);
+			default:
+				throw new IllegalArgumentException("unknown replacement policy " + this);
+			}
+		}
+	}
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Starts tracking a page that just became evictable. Does nothing if the page is
+	 * tracked already.
+	 */
+	abstract void add(PageId pid);
+
+	/**
+	 * Notes a use of the page. Does nothing if the page isn't tracked.
+	 */
+	abstract void access(PageId pid);
+
+	/**
+	 * Stops tracking the page. Does nothing if the page isn't tracked.
+	 */
+	abstract void remove(PageId pid);
+
+	/**
+	 * Picks the page to evict and stops tracking it.
+	 *
+	 * @return the page to evict, or null if no page is tracked
+	 */
+	PageId victim() {
+		return victim(pid -> true);
+	}
+
+	/**
+	 * Picks the page to evict among the eligible ones, the one victim() would pick if
+	 * only those were tracked, and stops tracking it. Used to keep to the pool's
+	 * per-table quotas; may take time linear in the number of pages tracked.
+	 *
+	 * @return the page to evict, or null if no eligible page is tracked
+	 */
+	abstract PageId victim(Predicate<PageId> eligible);
+
+	/**
+	 * Adapts the policy's internal sizes to a pool resized to numPages pages.
+	 */
+	void resize(int numPages) {
+	}
+
+	public abstract Type getType();
+
+	void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	void recordEviction() {
+		evictions.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the share of getPage calls that found the page cached
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long requests = h + misses.get();
+		return requests == 0 ? 0 : (double) h / requests;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: hit ratio %.3f (%d hits, %d misses, %d evictions)",
+				getType(), getHitRatio(), getHits(), getMisses(), getEvictions());
+	}
+}
@@ -5,7 +5,8 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk). The scan hints to the buffer pool that its pages are read once (see
+ * DbFileIterator.setSequentialScan).
  */
 public class SeqScan implements DbIterator {
 
@@ -40,6 +41,7 @@ public class SeqScan implements DbIterator {
     	this.tableAlias = tableAlias;
     	this.file = Database.getCatalog().getDatabaseFile(tableid);
     	this.iterator = this.file.iterator(this.tid);
+    	this.iterator.setSequentialScan(true);
     }
 
     /**
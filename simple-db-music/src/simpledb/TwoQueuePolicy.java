@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * The full 2Q of Johnson and Shasha. A page read in goes into a FIFO (A1in); pages
+ * that leave it are remembered, by id only, in a second FIFO (A1out), and a page read
+ * in again while it is remembered goes into an LRU list (Am) instead. Pages used once,
+ * like the leaves of a scan, so pass through A1in without pushing the pages that are
+ * used again and again out of Am.
+ * <p>
+ * A1in is kept to a quarter of the pool and A1out remembers half a pool's worth of
+ * pages, the sizes the paper recommends.
+ */
+class TwoQueuePolicy extends ReplacementPolicy {
+
+	// all guarded by this
+	private final PageList a1in = new PageList();
+	private final PageList a1out = new PageList();
+	private final PageList am = new PageList();
+	private int maxA1in;
+	private int maxA1out;
+
+	TwoQueuePolicy(int numPages) {
+		resize(numPages);
+	}
+
+	@Override
+	synchronized void resize(int numPages) {
+		this.maxA1in = Math.max(1, numPages / 4);
+		this.maxA1out = Math.max(1, numPages / 2);
+		while (a1out.size() > maxA1out) {
+			a1out.removeFirst();
+		}
+	}
+
+	@Override
+	synchronized void add(PageId pid) {
+		if (a1in.contains(pid) || am.contains(pid)) {
+			return;
+		}
+		if (a1out.remove(pid)) {
+			am.addLast(pid);
+		} else {
+			a1in.addLast(pid);
+		}
+	}
+
+	@Override
+	synchronized void access(PageId pid) {
+		// a page in A1in stays where it is: being used again while just read in
+		// doesn't make it hot
+		am.moveToLast(pid);
+	}
+
+	@Override
+	synchronized void remove(PageId pid) {
+		if (!a1in.remove(pid)) {
+			am.remove(pid);
+		}
+	}
+
+	@Override
+	synchronized PageId victim(Predicate<PageId> eligible) {
+		boolean fromA1in = a1in.size() > maxA1in || am.size() == 0;
+		PageId pid = fromA1in ? a1in.removeFirst(eligible) : am.removeFirst(eligible);
+		if (pid == null) {
+			// nothing eligible where the victim would normally come from
+			fromA1in = !fromA1in;
+			pid = fromA1in ? a1in.removeFirst(eligible) : am.removeFirst(eligible);
+		}
+		if (pid != null && fromA1in) {
+			a1out.addLast(pid);
+			if (a1out.size() > maxA1out) {
+				a1out.removeFirst();
+			}
+		}
+		return pid;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.TWO_Q;
+	}
+}
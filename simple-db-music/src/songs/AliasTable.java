@@ -0,0 +1,121 @@
+package songs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.Database;
+import simpledb.DbException;
+import simpledb.HeapFile;
+import simpledb.IntField;
+import simpledb.RecordId;
+import simpledb.SeqScan;
+import simpledb.StringField;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
+import simpledb.TupleDesc;
+import simpledb.Type;
+import simpledb.Utility;
+
+/**
+ * Persistent names of songs that were found to duplicate a track already in the
+ * index, each with the id of that track. An alias has no points of its own; it only
+ * keeps sync from ingesting the file again. The rows are mirrored in memory;
+ * modifying calls must hold the library's write lock.
+ */
+class AliasTable {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] {Type.STRING_TYPE, Type.INT_TYPE},
+            new String[] {"Song Name", "Track ID"});
+    // null for a read-only library that has no alias file
+    private final HeapFile table;
+    private final TransactionId tid;
+    private final Map<String, Integer> aliases = new ConcurrentHashMap<String, Integer>();
+    // where each alias's row is, so that removing an alias doesn't scan the table
+    private final Map<String, RecordId> rows = new HashMap<String, RecordId>();
+
+    private AliasTable(HeapFile table, TransactionId tid) {
+        this.table = table;
+        this.tid = tid;
+    }
+
+    /**
+     * Creates an empty table, replacing any existing file.
+     */
+    static AliasTable create(File file, TransactionId tid) throws IOException {
+        return new AliasTable(Utility.createEmptyHeapFile(file.getPath(), 2, TD), tid);
+    }
+
+    /**
+     * Opens the table and reads it into memory. A library built before the table
+     * existed gets an empty one, unless it is read-only, in which case nothing is
+     * created and there are simply no aliases.
+     */
+    static AliasTable open(File file, TransactionId tid, boolean readOnly)
+            throws IOException, DbException, TransactionAbortedException {
+        if (!file.exists()) {
+            return readOnly ? new AliasTable(null, tid) : create(file, tid);
+        }
+        AliasTable t = new AliasTable(Utility.openHeapFile(2, file, TD), tid);
+        SeqScan f = new SeqScan(tid, t.table.getId());
+        f.open();
+        while (f.hasNext()) {
+            Tuple row = f.next();
+            String name = ((StringField) row.getField(0)).getValue();
+            t.aliases.put(name, ((IntField) row.getField(1)).getValue());
+            t.rows.put(name, row.getRecordId());
+        }
+        f.close();
+        return t;
+    }
+
+    void put(String name, int trackId) throws DbException, IOException, TransactionAbortedException {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField(name, Type.STRING_LEN));
+        t.setField(1, new IntField(trackId));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        aliases.put(name, trackId);
+        rows.put(name, t.getRecordId());
+    }
+
+    void remove(String name) throws DbException, IOException, TransactionAbortedException {
+        aliases.remove(name);
+        RecordId rid = rows.remove(name);
+        if (rid == null) {
+            return;
+        }
+        Tuple t = new Tuple(TD);
+        t.setRecordId(rid);
+        Database.getBufferPool().deleteTuple(tid, t);
+    }
+
+    /**
+     * @return the id of the track name is an alias of, or null if it isn't one
+     */
+    Integer get(String name) {
+        return aliases.get(name);
+    }
+
+    /**
+     * @return any one alias of the track, or null if it has none
+     */
+    String anyAliasOf(int trackId) {
+        for (Map.Entry<String, Integer> e : aliases.entrySet()) {
+            if (e.getValue() == trackId) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a snapshot mapping every alias to its track id
+     */
+    Map<String, Integer> byName() {
+        return new HashMap<String, Integer>(aliases);
+    }
+}
@@ -0,0 +1,138 @@
+package songs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.musicg.wave.Wave;
+
+import audio.ReadAudio;
+import fingerprint.DataPoint;
+import fingerprint.Extractor;
+import fingerprint.SlidingWindowMatcher;
+import simpledb.BTreeFile;
+import simpledb.DbException;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+
+/**
+ * Logs every known song played in a long recording (a radio capture, a DJ mix).
+ * <p>
+ * The whole stream is fingerprinted once, in parallel chunks, and the points are
+ * bucketed into hops. An analysis window of several hops then slides over the stream
+ * a hop at a time through a SlidingWindowMatcher, so every point is extracted and
+ * probed once no matter how many windows it falls in. Windows that match confidently
+ * (relative to the window's size, see SlidingWindowMatcher) are merged into play
+ * segments: a window extends the current segment if it matched the same track and
+ * overlaps or touches it.
+ */
+public class BroadcastMonitor {
+
+    public static final double DEFAULT_WINDOW_SECONDS = 10.0;
+    public static final double DEFAULT_HOP_SECONDS = 2.5;
+    // true matches draw 10-100% of a window's points, chance alignments a few percent
+    public static final double DEFAULT_MIN_VOTE_FRACTION = 0.05;
+
+    private final SongLibrary library;
+    private final Extractor extractor;
+    private final BTreeFile btree;
+    private final TransactionId tid;
+    private final ChunkedFingerprinter fingerprinter;
+    private final double windowSeconds;
+    private final double hopSeconds;
+
+    BroadcastMonitor(SongLibrary library, Extractor extractor, BTreeFile btree, TransactionId tid,
+            ChunkedFingerprinter fingerprinter, double windowSeconds, double hopSeconds) {
+        if (hopSeconds <= 0 || windowSeconds < hopSeconds) {
+            throw new IllegalArgumentException("need 0 < hop <= window, got hop " + hopSeconds
+                    + " s and window " + windowSeconds + " s");
+        }
+        this.library = library;
+        this.extractor = extractor;
+        this.btree = btree;
+        this.tid = tid;
+        this.fingerprinter = fingerprinter;
+        this.windowSeconds = windowSeconds;
+        this.hopSeconds = hopSeconds;
+    }
+
+    /**
+     * @return the segments found in the recording, or null if it couldn't be read
+     */
+    public MonitorReport monitor(File recording) throws DbException, TransactionAbortedException {
+        long start = System.currentTimeMillis();
+        Wave wave = new Wave(recording.getAbsolutePath());
+        int channels = Math.max(1, wave.getWaveHeader().getChannels());
+        short[] samples = ReadAudio.extractSamples(wave, recording.getName());
+        if (samples == null) {
+            return null;
+        }
+        double framesPerSecond = (double) ReadAudio.SAMPLE_RATE * channels / ReadAudio.FFT_SAMPLE_SIZE;
+        int hopFrames = Math.max(1, (int) Math.round(hopSeconds * framesPerSecond));
+        int hopsPerWindow = Math.max(1, (int) Math.round(windowSeconds / hopSeconds));
+        int numFrames = samples.length / ReadAudio.FFT_SAMPLE_SIZE;
+        int numHops = (numFrames + hopFrames - 1) / hopFrames;
+
+        List<List<DataPoint>> hops = bucketByHop(fingerprinter.fingerprint(samples, -1), hopFrames, numHops);
+
+        SlidingWindowMatcher matcher = new SlidingWindowMatcher(extractor, btree, tid, hopsPerWindow,
+                DEFAULT_MIN_VOTE_FRACTION);
+        List<PlaySegment> segments = new ArrayList<PlaySegment>();
+        int segmentTrack = -1;
+        int segmentStart = 0;
+        int segmentEnd = 0;
+        int segmentVotes = 0;
+        int numWindows = 0;
+        for (int hop = 0; hop < numHops; hop++) {
+            matcher.addHop(hops.get(hop));
+            hops.set(hop, null);
+            // evaluate full windows only, except when the stream is shorter than one
+            if (matcher.getNumHops() < hopsPerWindow && hop < numHops - 1) {
+                continue;
+            }
+            numWindows++;
+            if (!matcher.isConfident()) {
+                continue;
+            }
+            int windowStart = (hop + 1 - matcher.getNumHops()) * hopFrames;
+            int windowEnd = Math.min((hop + 1) * hopFrames, numFrames);
+            int track = matcher.getBestTrackId();
+            if (track == segmentTrack && windowStart <= segmentEnd) {
+                segmentEnd = windowEnd;
+                segmentVotes = Math.max(segmentVotes, matcher.getBestVotes());
+                continue;
+            }
+            if (segmentTrack != -1) {
+                segments.add(toSegment(segmentTrack, segmentStart, segmentEnd, segmentVotes, framesPerSecond));
+            }
+            segmentTrack = track;
+            segmentStart = windowStart;
+            segmentEnd = windowEnd;
+            segmentVotes = matcher.getBestVotes();
+        }
+        if (segmentTrack != -1) {
+            segments.add(toSegment(segmentTrack, segmentStart, segmentEnd, segmentVotes, framesPerSecond));
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        return new MonitorReport(segments, numFrames / framesPerSecond, elapsed, numWindows, matcher.getNumProbes());
+    }
+
+    private static List<List<DataPoint>> bucketByHop(Set<DataPoint> points, int hopFrames, int numHops) {
+        List<List<DataPoint>> hops = new ArrayList<List<DataPoint>>(numHops);
+        for (int i = 0; i < numHops; i++) {
+            hops.add(new ArrayList<DataPoint>());
+        }
+        for (DataPoint p : points) {
+            hops.get(p.getTimeOffset() / hopFrames).add(p);
+        }
+        return hops;
+    }
+
+    private PlaySegment toSegment(int trackId, int startFrame, int endFrame, int votes, double framesPerSecond)
+            throws DbException, TransactionAbortedException {
+        return new PlaySegment(trackId, library.getSongName(trackId), startFrame / framesPerSecond,
+                endFrame / framesPerSecond, votes);
+    }
+}
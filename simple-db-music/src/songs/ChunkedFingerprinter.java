@@ -0,0 +1,128 @@
+package songs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import audio.FftPlan;
+import audio.ReadAudio;
+import fingerprint.DataPoint;
+import fingerprint.Extractor;
+import fingerprint.MatchTrace;
+import fingerprint.MatchTrace.Stage;
+
+/**
+ * Fingerprints one recording on several threads, for files (DJ mixes, radio
+ * captures) long enough that a single thread through the spectrogram and the
+ * extractor dominates ingestion or scanning.
+ * <p>
+ * The recording is cut into chunks of framesPerChunk spectrogram frames. Spectrogram
+ * frames don't overlap, so a chunk's frames only need the chunk's own samples as long
+ * as chunks start on a frame boundary. A point can depend on the frames after it,
+ * though (AnchorExtractor pairs an anchor with targets up to its look-ahead away), so
+ * each chunk also computes the extractor's getFrameLookahead() frames past its end and
+ * keeps only the points anchored inside the chunk. The union of the chunks' points is
+ * then exactly what extracting the whole spectrogram at once gives.
+ */
+public class ChunkedFingerprinter {
+
+    // ~47 s of audio per chunk; the extra look-ahead frames per chunk stay around 2%
+    public static final int DEFAULT_FRAMES_PER_CHUNK = 2048;
+
+    private final Extractor extractor;
+    private final ForkJoinPool pool;
+    private final int framesPerChunk;
+
+    public ChunkedFingerprinter(Extractor extractor, ForkJoinPool pool, int framesPerChunk) {
+        if (framesPerChunk <= 0) {
+            throw new IllegalArgumentException("chunks need at least one frame");
+        }
+        this.extractor = extractor;
+        this.pool = pool;
+        this.framesPerChunk = framesPerChunk;
+    }
+
+    public ChunkedFingerprinter(Extractor extractor) {
+        this(extractor, ForkJoinPool.commonPool(), DEFAULT_FRAMES_PER_CHUNK);
+    }
+
+    /**
+     * Extracts the points of a whole recording, as decoded by ReadAudio.extractSamples.
+     * Recordings that fit in one chunk are done on the calling thread.
+     */
+    public Set<DataPoint> fingerprint(short[] samples, int trackId) {
+        int numFrames = samples.length / ReadAudio.FFT_SAMPLE_SIZE;
+        // the chunks may run on other threads, so they add their times to the trace directly
+        MatchTrace trace = MatchTrace.current();
+        if (numFrames <= framesPerChunk) {
+            return new ChunkTask(samples, trackId, 0, numFrames, trace).compute();
+        }
+        List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+        for (int start = 0; start < numFrames; start += framesPerChunk) {
+            chunks.add(new ChunkTask(samples, trackId, start, Math.min(start + framesPerChunk, numFrames), trace));
+        }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(chunks);
+        } else {
+            pool.submit(() -> ForkJoinTask.invokeAll(chunks)).join();
+        }
+        Set<DataPoint> points = new HashSet<DataPoint>();
+        for (ChunkTask chunk : chunks) {
+            points.addAll(chunk.join());
+        }
+        return points;
+    }
+
+    public int getFramesPerChunk() {
+        return framesPerChunk;
+    }
+
+    private class ChunkTask extends RecursiveTask<Set<DataPoint>> {
+        private static final long serialVersionUID = 1L;
+
+        private final short[] samples;
+        private final int trackId;
+        private final int start;
+        private final int end;
+        private final MatchTrace trace;
+
+        ChunkTask(short[] samples, int trackId, int start, int end, MatchTrace trace) {
+            this.samples = samples;
+            this.trackId = trackId;
+            this.start = start;
+            this.end = end;
+            this.trace = trace;
+        }
+
+        @Override
+        protected Set<DataPoint> compute() {
+            int numFrames = samples.length / ReadAudio.FFT_SAMPLE_SIZE;
+            int lookaheadEnd = Math.min(end + extractor.getFrameLookahead(), numFrames);
+            long fftStart = System.nanoTime();
+            double[][] spectrogram = FftPlan.forThisThread(ReadAudio.FFT_SAMPLE_SIZE)
+                    .spectrogram(samples, start, lookaheadEnd);
+            long extractStart = System.nanoTime();
+            // the look-ahead frames are the next chunk's to count
+            Set<DataPoint> extracted = extractor.extractDataPoints(spectrogram, trackId, 0, end - start);
+            if (trace != null) {
+                trace.addStageNanos(Stage.FFT, extractStart - fftStart);
+                trace.addStageNanos(Stage.EXTRACT, System.nanoTime() - extractStart);
+            }
+            if (start == 0 && lookaheadEnd == end) {
+                return extracted;
+            }
+            Set<DataPoint> points = new HashSet<DataPoint>(extracted.size() * 2);
+            for (DataPoint p : extracted) {
+                // points anchored in the look-ahead belong to the next chunk
+                if (p.getTimeOffset() < end - start) {
+                    points.add(new DataPoint(p.getHash(), p.getTimeOffset() + start, p.getTrackId()));
+                }
+            }
+            return points;
+        }
+    }
+}
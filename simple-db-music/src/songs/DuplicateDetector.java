@@ -0,0 +1,190 @@
+package songs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import fingerprint.DataPoint;
+import fingerprint.TrackStats;
+import simpledb.BTreeFile;
+import simpledb.DbException;
+import simpledb.DbFileIterator;
+import simpledb.IndexPredicate;
+import simpledb.IntField;
+import simpledb.Predicate.Op;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
+
+/**
+ * Tells whether a song about to be ingested is already in the index under another
+ * name: a second copy of the same master, or a re-upload.
+ * <p>
+ * Up to MAX_PROBES of the new song's points are looked up in the index, in hash order so
+ * that consecutive lookups share leaves, or, while a new library is bulk loaded, in the
+ * points of the songs loaded so far. Every posting of a live track votes for
+ * that track and the time offset between the two songs. A duplicate lines up with the
+ * new song at a single offset for most of its points (a frame either way is allowed, for
+ * copies that were cut a little differently, though each probed point counts once), and
+ * also has about the same length, which keeps a long track from being taken for a
+ * duplicate of an excerpt of it or the other way around.
+ */
+class DuplicateDetector {
+
+    // share of the probed points that have to line up with the existing track
+    static final double MIN_ALIGNED_FRACTION = 0.5;
+    // largest difference in length, as a share of the longer of the two
+    static final double MAX_LENGTH_DIFFERENCE = 0.1;
+    private static final int MAX_PROBES = 2000;
+
+    // the live tracks' stats, by track id
+    private final Map<Integer, TrackStats> trackStats;
+
+    DuplicateDetector(Map<Integer, TrackStats> trackStats) {
+        this.trackStats = trackStats;
+    }
+
+    /**
+     * Where the probed hashes are looked up.
+     */
+    private interface Postings {
+        /**
+         * @return the points of any track that have the hash
+         */
+        List<DataPoint> of(int hash) throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * A duplicate found by findDuplicate.
+     */
+    static class Match {
+        final int trackId;
+        final double alignedFraction;
+
+        Match(int trackId, double alignedFraction) {
+            this.trackId = trackId;
+            this.alignedFraction = alignedFraction;
+        }
+    }
+
+    /**
+     * @return the live track in the index the points duplicate, or null if there is none
+     */
+    Match findDuplicate(Set<DataPoint> points, BTreeFile btree, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        return findDuplicate(points, hash -> {
+            List<DataPoint> postings = new ArrayList<DataPoint>();
+            DbFileIterator it = btree.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(hash)));
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                postings.add(new DataPoint(hash, ((IntField) t.getField(1)).getValue(),
+                        ((IntField) t.getField(2)).getValue()));
+            }
+            it.close();
+            return postings;
+        });
+    }
+
+    /**
+     * @param loaded the points of the songs loaded so far, by hash
+     * @return the loaded track the points duplicate, or null if there is none
+     */
+    Match findDuplicate(Set<DataPoint> points, Map<Integer, List<DataPoint>> loaded)
+            throws DbException, TransactionAbortedException {
+        return findDuplicate(points, hash -> loaded.getOrDefault(hash, Collections.<DataPoint>emptyList()));
+    }
+
+    private Match findDuplicate(Set<DataPoint> points, Postings postings)
+            throws DbException, TransactionAbortedException {
+        if (points.isEmpty()) {
+            return null;
+        }
+        // the probed points of each hash, every step-th point in hash order
+        List<DataPoint> sorted = new ArrayList<DataPoint>(points);
+        sorted.sort((a, b) -> Integer.compare(a.getHash(), b.getHash()));
+        int step = Math.max(1, (sorted.size() + MAX_PROBES - 1) / MAX_PROBES);
+        TreeMap<Integer, List<Integer>> probes = new TreeMap<Integer, List<Integer>>();
+        List<DataPoint> probed = new ArrayList<DataPoint>();
+        for (int i = 0; i < sorted.size(); i += step) {
+            DataPoint p = sorted.get(i);
+            probes.computeIfAbsent(p.getHash(), h -> new ArrayList<Integer>()).add(probed.size());
+            probed.add(p);
+        }
+        int numProbes = probed.size();
+
+        // the probes voting for each track, by offset of the track relative to the new song
+        Map<Integer, Map<Integer, List<Integer>>> votes = new HashMap<Integer, Map<Integer, List<Integer>>>();
+        for (Map.Entry<Integer, List<Integer>> probe : probes.entrySet()) {
+            for (DataPoint posting : postings.of(probe.getKey())) {
+                int trackId = posting.getTrackId();
+                // removed tracks have no stats, even while their points are being purged
+                if (!trackStats.containsKey(trackId)) {
+                    continue;
+                }
+                int offset = posting.getTimeOffset();
+                Map<Integer, List<Integer>> trackVotes = votes.computeIfAbsent(trackId,
+                        k -> new HashMap<Integer, List<Integer>>());
+                for (int i : probe.getValue()) {
+                    trackVotes.computeIfAbsent(offset - probed.get(i).getTimeOffset(), d -> new ArrayList<Integer>())
+                            .add(i);
+                }
+            }
+        }
+
+        int bestTrack = -1;
+        int bestVotes = 0;
+        for (Map.Entry<Integer, Map<Integer, List<Integer>>> e : votes.entrySet()) {
+            Map<Integer, List<Integer>> trackVotes = e.getValue();
+            for (int delta : trackVotes.keySet()) {
+                int aligned = alignedProbes(trackVotes, delta, bestVotes);
+                if (aligned > bestVotes) {
+                    bestVotes = aligned;
+                    bestTrack = e.getKey();
+                }
+            }
+        }
+        double alignedFraction = (double) bestVotes / numProbes;
+        if (bestTrack < 0 || alignedFraction < MIN_ALIGNED_FRACTION) {
+            return null;
+        }
+        TrackStats existing = trackStats.get(bestTrack);
+        int frames = TrackStats.of(-1, points).getNumFrames();
+        if (existing == null || Math.abs(existing.getNumFrames() - frames)
+                > MAX_LENGTH_DIFFERENCE * Math.max(existing.getNumFrames(), frames)) {
+            return null;
+        }
+        return new Match(bestTrack, alignedFraction);
+    }
+
+    /**
+     * Counts the probes that line up with a track at delta, or a frame either way. A
+     * probe whose hash the track has at neighbouring offsets votes at more than one of
+     * them, but is counted once.
+     *
+     * @return the number of probes; if that can't be more than atLeast, an upper bound
+     * on it that is no more than atLeast
+     */
+    private static int alignedProbes(Map<Integer, List<Integer>> trackVotes, int delta, int atLeast) {
+        List<Integer> at = trackVotes.get(delta);
+        List<Integer> before = trackVotes.get(delta - 1);
+        List<Integer> after = trackVotes.get(delta + 1);
+        int upperBound = at.size() + (before == null ? 0 : before.size()) + (after == null ? 0 : after.size());
+        if (upperBound <= atLeast) {
+            return upperBound;
+        }
+        Set<Integer> aligned = new HashSet<Integer>(at);
+        if (before != null) {
+            aligned.addAll(before);
+        }
+        if (after != null) {
+            aligned.addAll(after);
+        }
+        return aligned.size();
+    }
+}
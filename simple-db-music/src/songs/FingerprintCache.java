@@ -0,0 +1,200 @@
+package songs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import audio.ReadAudio;
+import fingerprint.DataPoint;
+import fingerprint.Extractor;
+
+/**
+ * Sidecar cache of extracted fingerprints, so rebuilding the library doesn't have to
+ * decode and fingerprint songs it has already seen. Entries are content addressed:
+ * the key is a hash of the audio file's bytes together with everything that affects
+ * extraction (the extractor's parameters and the spectrogram settings), so renamed
+ * files still hit and changed files or parameters simply miss.
+ * <p>
+ * Each entry is one small file holding the points sorted by time offset, with
+ * offsets delta-encoded as varints. Track ids are not stored since they are assigned
+ * at ingestion.
+ */
+public class FingerprintCache {
+
+    private static final int MAGIC = 0x46504331; // "FPC1"
+    // bump whenever the blob layout or the extraction pipeline changes incompatibly
+    private static final int FORMAT_VERSION = 1;
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    private final File cacheDir;
+    private final String parameterKey;
+    private int hits = 0;
+    private int misses = 0;
+
+    public FingerprintCache(File cacheDir, Extractor extractor) {
+        this.cacheDir = cacheDir;
+        this.parameterKey = "v" + FORMAT_VERSION + ";" + extractor.getParameterSignature()
+                + ";rate=" + ReadAudio.SAMPLE_RATE + ";fft=" + ReadAudio.FFT_SAMPLE_SIZE;
+        cacheDir.mkdirs();
+    }
+
+    /**
+     * @return the cache key for the given audio file: a hex digest of its contents and
+     * the extraction parameters
+     */
+    public String keyFor(File song) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new BufferedInputStream(new FileInputStream(song), HASH_BUFFER_SIZE);
+        try {
+            byte[] buf = new byte[HASH_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        digest.update(parameterKey.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Looks up the fingerprints stored under key, tagging them with trackId.
+     *
+     * @return the points, or null on a miss (or an unreadable entry)
+     */
+    public Set<DataPoint> get(String key, int trackId) {
+        File entry = entryFile(key);
+        if (!entry.exists()) {
+            misses++;
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic in " + entry);
+            }
+            int count = in.readInt();
+            Set<DataPoint> points = new HashSet<DataPoint>(count * 2);
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                offset += readVarInt(in);
+                points.add(new DataPoint(in.readInt(), offset, trackId));
+            }
+            hits++;
+            return points;
+        } catch (IOException e) {
+            System.out.println("ignoring unreadable fingerprint cache entry " + entry + ": " + e);
+            entry.delete();
+            misses++;
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores the fingerprints under key. The entry is written to a temporary file and
+     * renamed into place, so a crash never leaves a truncated entry behind.
+     */
+    public void put(String key, Set<DataPoint> points) throws IOException {
+        List<DataPoint> sorted = new ArrayList<DataPoint>(points);
+        Collections.sort(sorted, (p1, p2) -> p1.getTimeOffset() != p2.getTimeOffset()
+                ? Integer.compare(p1.getTimeOffset(), p2.getTimeOffset())
+                : Integer.compare(p1.getHash(), p2.getHash()));
+
+        File tmp = File.createTempFile(key, ".tmp", cacheDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(sorted.size());
+            int prevOffset = 0;
+            for (DataPoint p : sorted) {
+                writeVarInt(out, p.getTimeOffset() - prevOffset);
+                out.writeInt(p.getHash());
+                prevOffset = p.getTimeOffset();
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), entryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    private File entryFile(String key) {
+        return new File(cacheDir, key + ".fp");
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("malformed varint");
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to provide SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+        }
+    }
+}
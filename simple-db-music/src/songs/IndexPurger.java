@@ -0,0 +1,151 @@
+package songs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import simpledb.BTreeFile;
+import simpledb.BTreeLeafPage;
+import simpledb.BTreePageId;
+import simpledb.Database;
+import simpledb.DbException;
+import simpledb.DbFileIterator;
+import simpledb.IndexPredicate;
+import simpledb.IntField;
+import simpledb.Permissions;
+import simpledb.Predicate.Op;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
+
+/**
+ * Deletes every point of a removed track from the fingerprint index.
+ * <p>
+ * The index is keyed on the hash, and the track's hashes are recorded in
+ * TrackHashes, so each of them is looked up and its postings for the track deleted:
+ * a purge costs a search per distinct hash of the track, however big the index is.
+ * The work is split into short steps, one hash each, that each hold the library's
+ * write lock, so queries keep running while a purge is in progress. A delete that
+ * takes a leaf below half full moves tuples between leaves, so after one the hash
+ * is looked up again rather than reusing record ids from the earlier search.
+ */
+class IndexPurger {
+
+    private static final int FLUSH_INTERVAL = 1000;
+
+    private final BTreeFile btree;
+    private final TrackHashes trackHashes;
+    private final TransactionId tid;
+    private final Lock lock;
+
+    IndexPurger(BTreeFile btree, TrackHashes trackHashes, TransactionId tid, Lock lock) {
+        this.btree = btree;
+        this.trackHashes = trackHashes;
+        this.tid = tid;
+        this.lock = lock;
+    }
+
+    /**
+     * @return the number of points deleted
+     */
+    int purge(int trackId) throws DbException, TransactionAbortedException, IOException {
+        int[] hashes = trackHashes.get(trackId);
+        if (hashes == null) {
+            hashes = collectHashes(trackId);
+        }
+        int purged = 0;
+        int unflushed = 0;
+        for (int hash : hashes) {
+            lock.lock();
+            try {
+                int n = purgeHash(hash, trackId);
+                purged += n;
+                unflushed += n;
+                if (unflushed >= FLUSH_INTERVAL) {
+                    Database.getBufferPool().flushAllPages();
+                    unflushed = 0;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        lock.lock();
+        try {
+            Database.getBufferPool().flushAllPages();
+        } finally {
+            lock.unlock();
+        }
+        return purged;
+    }
+
+    /**
+     * Finds the hashes of a track that has none recorded, which only happens if the
+     * record was damaged, with one scan over the index. The scan holds the lock
+     * throughout, so nothing can change the leaves under it.
+     */
+    private int[] collectHashes(int trackId) throws DbException, TransactionAbortedException {
+        System.out.println("no hashes recorded for track "+trackId+", scanning the index for them");
+        Set<Integer> hashes = new HashSet<Integer>();
+        lock.lock();
+        try {
+            DbFileIterator it = btree.iterator(tid);
+            it.setSequentialScan(true);
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(2)).getValue() == trackId) {
+                    hashes.add(((IntField) t.getField(0)).getValue());
+                }
+            }
+            it.close();
+        } finally {
+            lock.unlock();
+        }
+        return hashes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int purgeHash(int hash, int trackId) throws DbException, TransactionAbortedException, IOException {
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(hash));
+        int purged = 0;
+        while (true) {
+            List<Tuple> victims = new ArrayList<Tuple>();
+            DbFileIterator it = btree.indexIterator(tid, ipred);
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(2)).getValue() == trackId) {
+                    victims.add(t);
+                }
+            }
+            it.close();
+            if (victims.isEmpty()) {
+                return purged;
+            }
+            boolean moved = false;
+            for (int i = 0; i < victims.size() && !moved; i++) {
+                Tuple victim = victims.get(i);
+                moved = rebalances(victim);
+                Database.getBufferPool().deleteTuple(tid, victim);
+                purged++;
+            }
+            if (!moved) {
+                return purged;
+            }
+        }
+    }
+
+    /**
+     * @return whether deleting the tuple takes its leaf below half full, in which
+     * case BTreeFile.deleteTuple moves tuples between it and a sibling
+     */
+    private boolean rebalances(Tuple t) throws DbException, TransactionAbortedException {
+        BTreePageId pid = new BTreePageId(btree.getId(), t.getRecordId().getPageId().pageNumber(),
+                BTreePageId.LEAF);
+        BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        int maxEmptySlots = leaf.getMaxTuples() - leaf.getMaxTuples() / 2;
+        return leaf.getNumEmptySlots() + 1 > maxEmptySlots;
+    }
+}
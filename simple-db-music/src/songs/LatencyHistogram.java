@@ -0,0 +1,108 @@
+package songs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram: every value is kept, in buckets
+ * whose width grows with the value, so percentiles come out with the same relative
+ * precision from microseconds to hours, in a fixed amount of memory, without the
+ * window LatencyRecorder has.
+ * <p>
+ * Values are recorded in microseconds. Each power of two is split into SUB_BUCKETS
+ * equal buckets, so a value read back (the upper end of its bucket) is off by less
+ * than 1%. Recording is lock-free, so any number of threads can record at once.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values from 2^MAX_EXPONENT microseconds (about 19 hours) up all go in the last bucket
+    private static final int MAX_EXPONENT = 36;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray(SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long elapsedNanos) {
+        long micros = Math.max(0, elapsedNanos / 1000);
+        counts.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    private int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return counts.length() - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) (micros >> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value, in microseconds, that goes in the bucket
+     */
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getTotalMillis() {
+        return totalMicros.get() / 1000.0;
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @return the latencies, in milliseconds, at each of the given percentiles (0-100),
+     * or all zeros if nothing has been recorded
+     */
+    public double[] percentilesMillis(double... percentiles) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        double[] result = new double[percentiles.length];
+        if (total == 0) {
+            return result;
+        }
+        long max = maxMicros.get();
+        for (int p = 0; p < percentiles.length; p++) {
+            // nearest rank, like LatencyRecorder
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    result[p] = Math.min(highestValueIn(i), max) / 1000.0;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,87 @@
+package songs;
+
+import java.util.Arrays;
+
+/**
+ * Request counts and latencies for a long-running service. Percentiles are computed
+ * over the most recent requests (a fixed-size window), so they follow the current
+ * load rather than everything since startup; counts and throughput cover the whole
+ * lifetime.
+ */
+public class LatencyRecorder {
+
+    public static final int DEFAULT_WINDOW = 10000;
+
+    private final long[] recentMicros;
+    private final long startNanos = System.nanoTime();
+    private long count = 0;
+    private long errors = 0;
+    private long maxMicros = 0;
+
+    public LatencyRecorder(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive, got " + window);
+        }
+        recentMicros = new long[window];
+    }
+
+    public LatencyRecorder() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public synchronized void record(long elapsedNanos) {
+        long micros = elapsedNanos / 1000;
+        recentMicros[(int) (count % recentMicros.length)] = micros;
+        count++;
+        maxMicros = Math.max(maxMicros, micros);
+    }
+
+    public synchronized void recordError() {
+        errors++;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    public double getUptimeSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * @return successful requests per second since the recorder was created
+     */
+    public double getThroughput() {
+        return getCount() / Math.max(getUptimeSeconds(), 1e-9);
+    }
+
+    /**
+     * @return the latencies, in milliseconds, at each of the given percentiles (0-100)
+     * over the recent window, or all zeros if nothing has been recorded
+     */
+    public double[] percentilesMillis(double... percentiles) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(recentMicros, (int) Math.min(count, recentMicros.length));
+        }
+        Arrays.sort(sorted);
+        double[] result = new double[percentiles.length];
+        if (sorted.length == 0) {
+            return result;
+        }
+        for (int i = 0; i < percentiles.length; i++) {
+            // nearest rank
+            int rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length);
+            result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1000.0;
+        }
+        return result;
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxMicros / 1000.0;
+    }
+}
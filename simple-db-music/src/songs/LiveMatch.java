@@ -0,0 +1,81 @@
+package songs;
+
+/**
+ * Outcome of recognizing a live stream: the best track so far when listening
+ * stopped, and how long it took to get there.
+ */
+public class LiveMatch {
+    private final int trackId;
+    private final String songName;
+    private final int votes;
+    private final boolean confident;
+    private final long timeToAnswerMillis;
+    private final double audioSeconds;
+    private final int numProbes;
+    private final long droppedSamples;
+
+    public LiveMatch(int trackId, String songName, int votes, boolean confident,
+            long timeToAnswerMillis, double audioSeconds, int numProbes, long droppedSamples) {
+        this.trackId = trackId;
+        this.songName = songName;
+        this.votes = votes;
+        this.confident = confident;
+        this.timeToAnswerMillis = timeToAnswerMillis;
+        this.audioSeconds = audioSeconds;
+        this.numProbes = numProbes;
+        this.droppedSamples = droppedSamples;
+    }
+
+    /**
+     * @return the best matching track id, or -1 if nothing matched
+     */
+    public int getTrackId() {
+        return trackId;
+    }
+
+    public String getSongName() {
+        return songName;
+    }
+
+    public int getVotes() {
+        return votes;
+    }
+
+    /**
+     * @return whether listening stopped because the match passed the early return
+     * test, rather than because time or audio ran out
+     */
+    public boolean isConfident() {
+        return confident;
+    }
+
+    /**
+     * @return wall-clock time from the start of capture to the answer
+     */
+    public long getTimeToAnswerMillis() {
+        return timeToAnswerMillis;
+    }
+
+    /**
+     * @return how much audio had been analyzed when the answer was given
+     */
+    public double getAudioSeconds() {
+        return audioSeconds;
+    }
+
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    @Override
+    public String toString() {
+        return (confident ? "matched " : "best guess ") + songName + " (" + votes + " votes) after "
+                + timeToAnswerMillis + " ms, " + String.format("%.2f", audioSeconds) + " s of audio, "
+                + numProbes + " index probes"
+                + (droppedSamples > 0 ? ", " + droppedSamples + " samples dropped" : "");
+    }
+}
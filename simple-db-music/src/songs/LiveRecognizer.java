@@ -0,0 +1,130 @@
+package songs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sound.sampled.TargetDataLine;
+
+import audio.LineCapture;
+import audio.ReadAudio;
+import audio.SampleRingBuffer;
+import audio.StreamingSpectrogram;
+import fingerprint.DataPoint;
+import fingerprint.Extractor;
+import fingerprint.StreamingMatcher;
+import simpledb.BTreeFile;
+import simpledb.DbException;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+
+/**
+ * Recognizes a song while it is still being captured. A LineCapture thread moves
+ * audio from the line into a lock-free ring buffer; this thread drains the buffer
+ * into a StreamingSpectrogram, extracts points from each batch of new frames and
+ * feeds them to a StreamingMatcher, and stops listening as soon as the match is
+ * confident.
+ */
+public class LiveRecognizer {
+
+    // new spectrogram frames to collect before extracting and probing again (~0.1 s)
+    private static final int FRAMES_PER_STEP = 4;
+    // ring buffer capacity, in samples; a few seconds of slack if matching falls behind
+    private static final int RING_CAPACITY = 4 * ReadAudio.SAMPLE_RATE;
+    // how long to back off when the ring is empty
+    private static final long IDLE_SLEEP_MILLIS = 2;
+
+    private final SongLibrary library;
+    private final Extractor extractor;
+    private final BTreeFile btree;
+    private final TransactionId tid;
+
+    LiveRecognizer(SongLibrary library, Extractor extractor, BTreeFile btree, TransactionId tid) {
+        this.library = library;
+        this.extractor = extractor;
+        this.btree = btree;
+        this.tid = tid;
+    }
+
+    /**
+     * Listens on the given (opened) line until the match is confident, maxListenMillis
+     * have passed, or the line runs dry. The line is started here and closed before
+     * returning.
+     */
+    public LiveMatch recognize(TargetDataLine line, long maxListenMillis) throws DbException, TransactionAbortedException {
+        long start = System.nanoTime();
+        long deadline = start + maxListenMillis * 1000000;
+        int channels = Math.max(1, line.getFormat().getChannels());
+
+        SampleRingBuffer ring = new SampleRingBuffer(RING_CAPACITY);
+        LineCapture capture = new LineCapture(line, ring);
+        Thread captureThread = new Thread(capture, "line-capture");
+        captureThread.setDaemon(true);
+        captureThread.start();
+
+        StreamingSpectrogram spectrogram = new StreamingSpectrogram();
+        StreamingMatcher matcher = new StreamingMatcher(extractor, btree, tid);
+        Set<DataPoint> seen = new HashSet<DataPoint>();
+        short[] samples = new short[ReadAudio.FFT_SAMPLE_SIZE * FRAMES_PER_STEP];
+        int extractedUpTo = 0;
+
+        try {
+            while (!matcher.isConfident() && System.nanoTime() < deadline
+                    && !Thread.currentThread().isInterrupted()) {
+                boolean lineDone = capture.isFinished();
+                int numRead = ring.read(samples, 0, samples.length);
+                if (numRead == 0) {
+                    if (lineDone) {
+                        break;
+                    }
+                    sleepQuietly(IDLE_SLEEP_MILLIS);
+                    continue;
+                }
+                spectrogram.addSamples(samples, 0, numRead);
+                int numFrames = spectrogram.getNumFrames();
+                if (numFrames - extractedUpTo < FRAMES_PER_STEP && !(lineDone && ring.available() == 0)) {
+                    continue;
+                }
+                matcher.addPoints(extractNewPoints(spectrogram, extractedUpTo, seen));
+                extractedUpTo = numFrames;
+            }
+        } finally {
+            capture.stop();
+        }
+        long timeToAnswer = (System.nanoTime() - start) / 1000000;
+
+        int trackId = matcher.getBestTrackId();
+        String songName = trackId == -1 ? null : library.getSongName(trackId);
+        double audioSeconds = spectrogram.getNumSamples() / (double) (ReadAudio.SAMPLE_RATE * channels);
+        return new LiveMatch(trackId, songName, matcher.getBestVotes(), matcher.isConfident(),
+                timeToAnswer, audioSeconds, matcher.getNumProbes(), ring.getDroppedSamples());
+    }
+
+    /**
+     * Extracts points from the frames added since the last step. The extractor's
+     * look-ahead worth of older frames is re-extracted too, so points whose target
+     * zone was cut off by the end of the previous batch get completed.
+     */
+    private List<DataPoint> extractNewPoints(StreamingSpectrogram spectrogram, int extractedUpTo, Set<DataPoint> seen) {
+        int from = Math.max(0, extractedUpTo - extractor.getFrameLookahead());
+        double[][] frames = spectrogram.getFrames(from, spectrogram.getNumFrames());
+        List<DataPoint> fresh = new ArrayList<DataPoint>();
+        // the re-extracted frames were counted by the previous step
+        for (DataPoint p : extractor.extractDataPoints(frames, -1, extractedUpTo - from, frames.length)) {
+            DataPoint shifted = new DataPoint(p.getHash(), p.getTimeOffset() + from, p.getTrackId());
+            if (seen.add(shifted)) {
+                fresh.add(shifted);
+            }
+        }
+        return fresh;
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
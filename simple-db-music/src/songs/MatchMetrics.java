@@ -0,0 +1,136 @@
+package songs;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fingerprint.MatchTrace;
+import fingerprint.MatchTrace.Stage;
+
+/**
+ * Per-stage latency histograms and index counters over every traced match, for
+ * telling which stage to tune. Can be dumped as a table (toString) or scraped in the
+ * Prometheus text format (toPrometheus, served by RecognitionServer at /metrics).
+ */
+public class MatchMetrics {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong postings = new AtomicLong();
+    private final AtomicLong leafPages = new AtomicLong();
+    private final AtomicLong pageHits = new AtomicLong();
+    private final AtomicLong pageMisses = new AtomicLong();
+
+    public MatchMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Adds an ended trace. Stages the match didn't go through (decoding, for samples
+     * that came fingerprinted) aren't recorded for it.
+     */
+    public void record(MatchTrace trace) {
+        for (Stage stage : Stage.values()) {
+            if (trace.ran(stage)) {
+                stages.get(stage).record(trace.getStageNanos(stage));
+            }
+        }
+        total.record(trace.getTotalNanos());
+        probes.addAndGet(trace.getProbes());
+        postings.addAndGet(trace.getPostings());
+        leafPages.addAndGet(trace.getLeafPages());
+        pageHits.addAndGet(trace.getPageHits());
+        pageMisses.addAndGet(trace.getPageMisses());
+    }
+
+    public LatencyHistogram getStage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the share of the matches' buffer pool requests that were hits
+     */
+    public double getPageHitRatio() {
+        long hits = pageHits.get();
+        long requests = hits + pageMisses.get();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format: each stage's
+     * latency as a summary, plus counters
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP songs_match_stage_seconds Time spent in each stage of a match.\n");
+        sb.append("# TYPE songs_match_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            appendSummary(sb, "songs_match_stage_seconds", "stage=\"" + stage.label() + "\",", stages.get(stage));
+        }
+        sb.append("# HELP songs_match_seconds Time of a whole match.\n");
+        sb.append("# TYPE songs_match_seconds summary\n");
+        appendSummary(sb, "songs_match_seconds", "", total);
+        appendCounter(sb, "songs_match_index_probes_total", "Index lookups made by matches.", probes.get());
+        appendCounter(sb, "songs_match_postings_total", "Points returned by index lookups.", postings.get());
+        appendCounter(sb, "songs_match_leaf_pages_total", "B+ tree leaf pages read by matches.", leafPages.get());
+        appendCounter(sb, "songs_match_page_hits_total", "Buffer pool hits of matches.", pageHits.get());
+        appendCounter(sb, "songs_match_page_misses_total", "Buffer pool misses of matches.", pageMisses.get());
+        return sb.toString();
+    }
+
+    private static void appendSummary(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        double[] p = h.percentilesMillis(PERCENTILES);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append(name).append('{').append(labels).append("quantile=\"").append(QUANTILE_LABELS[i])
+                    .append("\"} ").append(seconds(p[i])).append('\n');
+        }
+        String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        sb.append(name).append("_sum").append(plainLabels).append(' ').append(seconds(h.getTotalMillis())).append('\n');
+        sb.append(name).append("_count").append(plainLabels).append(' ').append(h.getCount()).append('\n');
+    }
+
+    private static String seconds(double millis) {
+        return String.format(Locale.ROOT, "%.6f", millis / 1000);
+    }
+
+    private static void appendCounter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return a table of each stage's latency percentiles, in milliseconds
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%-9s %7s %8s %8s %8s %8s %8s %8s%n",
+                "stage", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Stage stage : Stage.values()) {
+            appendRow(sb, stage.label(), stages.get(stage));
+        }
+        appendRow(sb, "total", total);
+        long n = total.getCount();
+        sb.append(String.format("per match: %.1f probes, %.1f postings, %.1f leaf pages; page hit ratio %.3f",
+                n == 0 ? 0.0 : (double) probes.get() / n, n == 0 ? 0.0 : (double) postings.get() / n,
+                n == 0 ? 0.0 : (double) leafPages.get() / n, getPageHitRatio()));
+        return sb.toString();
+    }
+
+    private static void appendRow(StringBuilder sb, String label, LatencyHistogram h) {
+        double[] p = h.percentilesMillis(PERCENTILES);
+        sb.append(String.format("%-9s %7d %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f%n",
+                label, h.getCount(), h.getMeanMillis(), p[0], p[1], p[2], p[3], h.getMaxMillis()));
+    }
+}
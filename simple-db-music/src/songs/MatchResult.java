@@ -0,0 +1,42 @@
+package songs;
+
+import java.util.Map;
+
+import fingerprint.MatchTrace;
+
+/**
+ * The scores of one match together with its trace: the time of each stage and what
+ * the match cost the index.
+ */
+public class MatchResult {
+
+    private final Map<String, Double> scores;
+    private final int numSamplePoints;
+    private final MatchTrace trace;
+
+    public MatchResult(Map<String, Double> scores, int numSamplePoints, MatchTrace trace) {
+        this.scores = scores;
+        this.numSamplePoints = numSamplePoints;
+        this.trace = trace;
+    }
+
+    /**
+     * @return scores by song name
+     */
+    public Map<String, Double> getScores() {
+        return scores;
+    }
+
+    public int getNumSamplePoints() {
+        return numSamplePoints;
+    }
+
+    public MatchTrace getTrace() {
+        return trace;
+    }
+
+    @Override
+    public String toString() {
+        return scores + " (" + numSamplePoints + " sample points; " + trace + ")";
+    }
+}
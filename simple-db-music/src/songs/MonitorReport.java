@@ -0,0 +1,65 @@
+package songs;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What BroadcastMonitor found in one stream: the play segments in stream order, and
+ * how fast the stream was processed.
+ */
+public class MonitorReport {
+    private final List<PlaySegment> segments;
+    private final double audioSeconds;
+    private final long elapsedMillis;
+    private final int numWindows;
+    private final int numProbes;
+
+    public MonitorReport(List<PlaySegment> segments, double audioSeconds, long elapsedMillis,
+            int numWindows, int numProbes) {
+        this.segments = Collections.unmodifiableList(segments);
+        this.audioSeconds = audioSeconds;
+        this.elapsedMillis = elapsedMillis;
+        this.numWindows = numWindows;
+        this.numProbes = numProbes;
+    }
+
+    public List<PlaySegment> getSegments() {
+        return segments;
+    }
+
+    public double getAudioSeconds() {
+        return audioSeconds;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return seconds of audio processed per second of wall-clock time
+     */
+    public double getRealTimeFactor() {
+        return audioSeconds / Math.max(elapsedMillis, 1) * 1000;
+    }
+
+    public int getNumWindows() {
+        return numWindows;
+    }
+
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (PlaySegment segment : segments) {
+            sb.append(segment).append('\n');
+        }
+        sb.append(segments.size()).append(" segments in ").append(String.format("%.1f", audioSeconds))
+                .append(" s of audio, ").append(numWindows).append(" windows, ").append(numProbes)
+                .append(" index probes, ").append(elapsedMillis).append(" ms (")
+                .append(String.format("%.1f", getRealTimeFactor())).append("x real time)");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package songs;
+
+/**
+ * A stretch of a monitored stream during which one known track was playing, built
+ * by merging the consecutive analysis windows that confidently matched it.
+ */
+public class PlaySegment {
+    private final int trackId;
+    private final String songName;
+    private final double startSeconds;
+    private final double endSeconds;
+    private final int peakVotes;
+
+    public PlaySegment(int trackId, String songName, double startSeconds, double endSeconds, int peakVotes) {
+        this.trackId = trackId;
+        this.songName = songName;
+        this.startSeconds = startSeconds;
+        this.endSeconds = endSeconds;
+        this.peakVotes = peakVotes;
+    }
+
+    public int getTrackId() {
+        return trackId;
+    }
+
+    public String getSongName() {
+        return songName;
+    }
+
+    /**
+     * @return the start of the first window that matched, in seconds into the stream
+     */
+    public double getStartSeconds() {
+        return startSeconds;
+    }
+
+    /**
+     * @return the end of the last window that matched, in seconds into the stream
+     */
+    public double getEndSeconds() {
+        return endSeconds;
+    }
+
+    /**
+     * @return the highest aligned vote count of any window in the segment
+     */
+    public int getPeakVotes() {
+        return peakVotes;
+    }
+
+    @Override
+    public String toString() {
+        return formatTime(startSeconds) + " - " + formatTime(endSeconds) + "  " + songName
+                + " (" + peakVotes + " votes)";
+    }
+
+    private static String formatTime(double seconds) {
+        int whole = (int) seconds;
+        return String.format("%d:%02d:%02d", whole / 3600, whole / 60 % 60, whole % 60);
+    }
+}
@@ -0,0 +1,105 @@
+package songs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fingerprint.DataPoint;
+
+/**
+ * Stress harness for the concurrent query path: runs the same batch of queries
+ * against a library from 1, 2, 4, ... threads and reports the throughput of each
+ * run, and whether any query answered differently than it did single-threaded.
+ * <p>
+ * The samples are fingerprinted once up front, so the runs measure matching against
+ * the index (buffer pool, index probes, scoring) rather than audio decoding.
+ */
+public class QueryStress {
+
+    private final SongLibrary library;
+    private final List<Set<DataPoint>> samples = new ArrayList<Set<DataPoint>>();
+    private final List<String> expected = new ArrayList<String>();
+
+    public QueryStress(SongLibrary library, File sampleFolder) {
+        this.library = library;
+        for (File sample : sampleFolder.listFiles()) {
+            // filter out .DS_STORE
+            if (sample.getName().startsWith(".")) {
+                continue;
+            }
+            Set<DataPoint> points = library.fingerprintSample(sample);
+            if (points != null) {
+                samples.add(points);
+                expected.add(bestSong(library.identify(points)));
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("no readable samples in " + sampleFolder);
+        }
+    }
+
+    /**
+     * Runs queriesPerRun queries, spread over numThreads threads.
+     */
+    public void run(int numThreads, int queriesPerRun) throws InterruptedException {
+        AtomicInteger nextQuery = new AtomicInteger();
+        AtomicInteger mismatches = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int query;
+                while ((query = nextQuery.getAndIncrement()) < queriesPerRun) {
+                    int sample = query % samples.size();
+                    String best = bestSong(library.identify(samples.get(sample)));
+                    if (best == null ? expected.get(sample) != null : !best.equals(expected.get(sample))) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+            }, "query-stress-" + i);
+            threads.add(t);
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.println(String.format("%2d threads: %d queries in %.2f s, %.1f queries/s, %d mismatches",
+                numThreads, queriesPerRun, seconds, queriesPerRun / seconds, mismatches.get()));
+    }
+
+    /**
+     * Runs the batch at 1, 2, 4, ... up to maxThreads threads.
+     */
+    public void runScaling(int maxThreads, int queriesPerRun) throws InterruptedException {
+        System.out.println(samples.size() + " samples, " + Runtime.getRuntime().availableProcessors()
+                + " processors");
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            run(numThreads, queriesPerRun);
+        }
+    }
+
+    private static String bestSong(Map<String, Double> scores) {
+        if (scores == null) {
+            return null;
+        }
+        String best = null;
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            if (best == null || e.getValue() > scores.get(best)) {
+                best = e.getKey();
+            }
+        }
+        return best;
+    }
+}
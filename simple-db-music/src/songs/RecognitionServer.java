@@ -0,0 +1,290 @@
+package songs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import com.musicg.wave.Wave;
+import com.musicg.wave.WaveHeader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fingerprint.DataPoint;
+import fingerprint.MatchTrace;
+import fingerprint.MatchTrace.Stage;
+
+/**
+ * Serves a SongLibrary over HTTP on localhost.
+ * <ul>
+ * <li>POST /match?k=5 with a WAV file as the body answers the top k matches as JSON.
+ * Raw 16-bit little-endian PCM is accepted too, with
+ * ?format=pcm&amp;rate=44100&amp;channels=1 describing it.</li>
+ * <li>GET /stats answers request counts, throughput and latency percentiles.</li>
+ * <li>GET /metrics answers the library's per-stage match latencies and index
+ * counters (see MatchMetrics) in the Prometheus text format.</li>
+ * </ul>
+ * Every match answer includes the match's own trace: the time of each stage and the
+ * index probes, postings and pages it took.
+ * Requests are handled on virtual threads when the JVM has them (Java 21 and up) and
+ * on a fixed pool of platform threads otherwise. Every request is a read-only query,
+ * so they all run concurrently against the library.
+ */
+public class RecognitionServer {
+
+    public static final int DEFAULT_TOP_K = 5;
+    private static final int MAX_TOP_K = 100;
+
+    private final SongLibrary library;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final LatencyRecorder latencies = new LatencyRecorder();
+
+    /**
+     * @param port the port to listen on, or 0 for any free one
+     * @param numThreads the size of the pool used when virtual threads aren't available
+     */
+    public RecognitionServer(SongLibrary library, int port, int numThreads) throws IOException {
+        this.library = library;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        executor = virtualThreads ? virtual : Executors.newFixedThreadPool(numThreads);
+        server.setExecutor(executor);
+        server.createContext("/match", this::handleMatch);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() if this JVM has it. Looked up
+     * reflectively so that the code still compiles and runs on older JDKs.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("recognition server listening on http://localhost:" + getPort()
+                + (virtualThreads ? " (virtual threads)" : " (thread pool)"));
+    }
+
+    /**
+     * Stops accepting requests, waiting up to delaySeconds for the ones in progress.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    private void handleMatch(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("POST a WAV file or raw PCM to /match"));
+                return;
+            }
+            long start = System.nanoTime();
+            Map<String, String> params = queryParams(exchange.getRequestURI());
+            int k = Math.max(1, Math.min(MAX_TOP_K, intParam(params, "k", DEFAULT_TOP_K)));
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            MatchResult result;
+            MatchTrace trace = MatchTrace.begin();
+            try {
+                long decodeStart = System.nanoTime();
+                Wave wave = "pcm".equals(params.get("format"))
+                        ? pcmWave(body, intParam(params, "rate", 44100), intParam(params, "channels", 1))
+                        : new Wave(new ByteArrayInputStream(body));
+                MatchTrace.current().addStageNanos(Stage.DECODE, System.nanoTime() - decodeStart);
+                Set<DataPoint> samplePoints = wave.getWaveHeader().isValid() && wave.getBytes() != null
+                        ? library.fingerprintSample(wave, "upload") : null;
+                if (samplePoints == null) {
+                    latencies.recordError();
+                    respond(exchange, 400, error("couldn't read the upload as audio"));
+                    return;
+                }
+                result = library.match(samplePoints);
+                if (result == null) {
+                    latencies.recordError();
+                    respond(exchange, 500, error("error reading the index"));
+                    return;
+                }
+            } finally {
+                if (trace != null) {
+                    trace.end();
+                }
+            }
+            if (trace != null) {
+                library.getMatchMetrics().record(trace);
+            }
+            long elapsed = System.nanoTime() - start;
+            latencies.record(elapsed);
+            respond(exchange, 200, matchJson(result, k, elapsed));
+        } catch (IllegalArgumentException e) {
+            latencies.recordError();
+            respond(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            latencies.recordError();
+            respond(exchange, 500, error(String.valueOf(e)));
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        byte[] bytes = library.getMatchMetrics().toPrometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        double[] p = latencies.percentilesMillis(50, 90, 99);
+        String json = String.format("{\"requests\":%d,\"errors\":%d,\"uptimeSeconds\":%.1f,"
+                + "\"throughput\":%.2f,\"latencyMillis\":{\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f,\"max\":%.2f},"
+                + "\"virtualThreads\":%b}",
+                latencies.getCount(), latencies.getErrors(), latencies.getUptimeSeconds(),
+                latencies.getThroughput(), p[0], p[1], p[2], latencies.getMaxMillis(), virtualThreads);
+        respond(exchange, 200, json);
+    }
+
+    /**
+     * Wraps raw 16-bit little-endian PCM in a wave, so it goes through the same
+     * resampling as uploaded WAV files.
+     */
+    private static Wave pcmWave(byte[] pcm, int sampleRate, int channels) {
+        if (sampleRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("rate and channels must be positive");
+        }
+        WaveHeader header = new WaveHeader();
+        header.setChunkId(WaveHeader.RIFF_HEADER);
+        header.setFormat(WaveHeader.WAVE_HEADER);
+        header.setSubChunk1Id(WaveHeader.FMT_HEADER);
+        header.setSubChunk1Size(16);
+        header.setAudioFormat(1);
+        header.setChannels(channels);
+        header.setSampleRate(sampleRate);
+        header.setBitsPerSample(16);
+        header.setBlockAlign(channels * 2);
+        header.setByteRate((long) sampleRate * channels * 2);
+        header.setSubChunk2Id(WaveHeader.DATA_HEADER);
+        header.setSubChunk2Size(pcm.length);
+        header.setChunkSize(36 + pcm.length);
+        return new Wave(header, pcm);
+    }
+
+    private static String matchJson(MatchResult result, int k, long elapsedNanos) {
+        List<Map.Entry<String, Double>> top = result.getScores().entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(k)
+                .collect(Collectors.toList());
+        StringBuilder sb = new StringBuilder("{\"matches\":[");
+        for (int i = 0; i < top.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"song\":").append(quote(top.get(i).getKey()))
+                    .append(",\"score\":").append(top.get(i).getValue()).append('}');
+        }
+        MatchTrace trace = result.getTrace();
+        sb.append("],\"samplePoints\":").append(result.getNumSamplePoints())
+                .append(",\"millis\":").append(String.format("%.2f", elapsedNanos / 1e6))
+                .append(",\"stageMillis\":{");
+        boolean first = true;
+        for (Stage stage : Stage.values()) {
+            if (trace.ran(stage)) {
+                sb.append(first ? "" : ",").append(quote(stage.label())).append(':')
+                        .append(String.format("%.3f", trace.getStageMillis(stage)));
+                first = false;
+            }
+        }
+        sb.append("},\"probes\":").append(trace.getProbes())
+                .append(",\"postings\":").append(trace.getPostings())
+                .append(",\"leafPages\":").append(trace.getLeafPages())
+                .append(",\"pageHits\":").append(trace.getPageHits())
+                .append(",\"pageMisses\":").append(trace.getPageMisses()).append('}');
+        return sb.toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static Map<String, String> queryParams(URI uri) {
+        Map<String, String> params = new HashMap<String, String>();
+        String query = uri.getQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer, got " + value);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package songs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load tests a RecognitionServer from the same machine: a number of client threads
+ * post the WAV files of a folder to /match, round robin, and the client-side
+ * throughput and latency percentiles are printed together with the server's /stats.
+ * <p>
+ * Usage: ServerLoadGenerator &lt;server url&gt; &lt;sample folder&gt; &lt;clients&gt; &lt;requests&gt;
+ */
+public class ServerLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.out.println("usage: ServerLoadGenerator <server url> <sample folder> <clients> <requests>");
+            return;
+        }
+        String server = args[0];
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (File sample : new File(args[1]).listFiles()) {
+            // filter out .DS_STORE
+            if (!sample.getName().startsWith(".")) {
+                samples.add(Files.readAllBytes(sample.toPath()));
+            }
+        }
+        int numClients = Integer.parseInt(args[2]);
+        int numRequests = Integer.parseInt(args[3]);
+        LatencyRecorder latencies = run(new URL(server + "/match"), samples, numClients, numRequests);
+        double[] p = latencies.percentilesMillis(50, 90, 99);
+        System.out.println(String.format("%d clients: %d requests, %d errors, %.1f requests/s, "
+                + "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                numClients, latencies.getCount(), latencies.getErrors(), latencies.getThroughput(),
+                p[0], p[1], p[2], latencies.getMaxMillis()));
+        System.out.println("server: " + new String(get(new URL(server + "/stats")), "UTF-8"));
+    }
+
+    public static LatencyRecorder run(URL matchUrl, List<byte[]> samples, int numClients, int numRequests)
+            throws InterruptedException {
+        LatencyRecorder latencies = new LatencyRecorder(numRequests);
+        AtomicInteger nextRequest = new AtomicInteger();
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < numClients; i++) {
+            Thread t = new Thread(() -> {
+                int request;
+                while ((request = nextRequest.getAndIncrement()) < numRequests) {
+                    long start = System.nanoTime();
+                    try {
+                        post(matchUrl, samples.get(request % samples.size()));
+                        latencies.record(System.nanoTime() - start);
+                    } catch (IOException e) {
+                        System.out.println("request " + request + " failed: " + e);
+                        latencies.recordError();
+                    }
+                }
+            }, "load-client-" + i);
+            clients.add(t);
+            t.start();
+        }
+        for (Thread t : clients) {
+            t.join();
+        }
+        return latencies;
+    }
+
+    private static byte[] post(URL url, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        conn.setRequestProperty("Content-Type", "audio/wav");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("HTTP " + conn.getResponseCode());
+        }
+        try (InputStream in = conn.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] get(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try (InputStream in = conn.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+}
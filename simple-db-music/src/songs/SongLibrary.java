@@ -1,24 +1,45 @@
 package songs;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import javax.sound.sampled.TargetDataLine;
 
 import com.musicg.wave.Wave;
 
 import audio.ReadAudio;
 import fingerprint.DataPoint;
 import fingerprint.Extractor;
+import fingerprint.MatchTrace;
+import fingerprint.MatchTrace.Stage;
+import fingerprint.TrackStats;
+import simpledb.BTreeBulkLoader;
 import simpledb.BTreeFile;
 import simpledb.BTreeUtility;
+import simpledb.BufferPool;
 import simpledb.Database;
 import simpledb.DbException;
 import simpledb.DbFileIterator;
 import simpledb.HeapFile;
 import simpledb.IntField;
+import simpledb.RecordId;
 import simpledb.SeqScan;
 import simpledb.StringField;
 import simpledb.TransactionAbortedException;
@@ -30,40 +51,541 @@ import simpledb.Utility;
 
 
 public class SongLibrary {
+    private static final int FLUSH_INTERVAL = 1000;
+    // buffer pool space kept for the song and track stats tables (32 pages each)
+    private static final long SMALL_TABLE_RESERVE_BYTES = 128 * 1024;
+    private static final long HOT_SET_SAVE_SECONDS = 60;
+    // page size of a newly created index, recorded in the file so that an index created
+    // with another size still opens; a query's points are spread over the whole key
+    // range, so bigger leaves mean fewer, longer reads and a shallower tree
+    private static final int INDEX_PAGE_SIZE = 16 * 1024;
+
     private final File dbFile = new File("song_db");
     private final File songNameFile = new File("songs");
+    private final File fingerprintCacheDir = new File("fingerprint_cache");
+    private final File trackStatsFile = new File("track_stats");
+    private final File trackHashesDir = new File("track_hashes");
+    private final File hotSetFile = new File("song_db.hot");
+    private final File aliasFile = new File("song_aliases");
 
     private final Extractor extractor;
     private final BTreeFile btree;
     private final HeapFile songNameTable;
+    // where the song table row storing each track id (or tombstone) is, so that
+    // removing a song doesn't scan the table
+    private final Map<Integer, RecordId> songRows = new HashMap<Integer, RecordId>();
+    private final TrackStatsTable trackStats;
+    // null for a read-only library, which never purges
+    private final TrackHashes trackHashes;
+    // songs found to duplicate an indexed track, which were not indexed again
+    private final AliasTable aliases;
     private final TupleDesc btreeTd;
     private final TupleDesc songNameTableTd;
+    // the transaction that modifies the library; every query runs in its own
     private final TransactionId tid;
+    private final FingerprintCache fingerprintCache;
+    private final ChunkedFingerprinter fingerprinter;
+    // queries share the read lock; ingestion, removal and the background purge
+    // modify the index and the song table under the write lock
+    private final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+    // tracks tombstoned in the song table whose points are still in the index
+    private final Set<Integer> removedTracks = ConcurrentHashMap.newKeySet();
+    private final ExecutorService purgeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "index-purge");
+        t.setDaemon(true);
+        return t;
+    });
+    private IndexPurger purger;
+    // null unless songs are checked for duplicates before they are ingested
+    private DuplicateDetector duplicateDetector;
+    private int nextTrackId = 0;
+    // the song table's live rows, so that matching never has to scan it
+    private final TrackDictionary tracks = new TrackDictionary();
+    // serving only: nothing is written, and queries neither lock nor commit
+    private final boolean readOnly;
+    private final MatchMetrics matchMetrics = new MatchMetrics();
     
     public SongLibrary(File songFolder, Extractor extractor) throws IOException {
+        this(songFolder, extractor, true);
+    }
+    
+    /**
+     * @param pinUpperLevels whether to keep the index's root and internal pages in
+     * the buffer pool for good, see warmUp
+     */
+    public SongLibrary(File songFolder, Extractor extractor, boolean pinUpperLevels) throws IOException {
+        this(songFolder, extractor, pinUpperLevels, false);
+    }
+    
+    /**
+     * @param detectDuplicates whether sync should match every new song against the
+     * index first, and record one that duplicates an indexed track as an alias of it
+     * instead of indexing it again, see DuplicateDetector. A new library is bulk
+     * loaded with the same check, each song against the ones loaded before it.
+     */
+    public SongLibrary(File songFolder, Extractor extractor, boolean pinUpperLevels, boolean detectDuplicates)
+            throws IOException {
+        this(songFolder, extractor, pinUpperLevels, detectDuplicates, false);
+    }
+    
+    /**
+     * Opens the library in the working directory for serving queries only, e.g. on a
+     * replica that was copied from a library built elsewhere. The song folder isn't
+     * synced, interrupted purges aren't resumed, and sync throws. Since the index
+     * can't change underneath them, queries skip the library's lock and don't run
+     * as transactions, and index pages are read without before images.
+     * 
+     * @throws IOException if there is no library to open
+     */
+    public static SongLibrary openReadOnly(Extractor extractor) throws IOException {
+        return new SongLibrary(null, extractor, true, false, true);
+    }
+    
+    private SongLibrary(File songFolder, Extractor extractor, boolean pinUpperLevels, boolean detectDuplicates,
+            boolean readOnly) throws IOException {
         this.extractor = extractor;
+        this.readOnly = readOnly;
         btreeTd = new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
                 new String[] {"Hash", "Time Offset", "Track ID"});
         songNameTableTd = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE},
                 new String[]{"Song Name", "Track ID"});
         tid = new TransactionId();
+        fingerprintCache = new FingerprintCache(fingerprintCacheDir, extractor);
+        fingerprinter = new ChunkedFingerprinter(extractor);
+        extractor.setExcludedTracks(removedTracks);
         boolean needToInitDb = !dbFile.exists();
+        if (readOnly && (needToInitDb || !songNameFile.exists() || !trackStatsFile.exists())) {
+            throw new IOException("no library to open read-only in "+dbFile.getAbsoluteFile().getParent());
+        }
         if (needToInitDb) {
-            btree = BTreeUtility.createEmptyBTreeFile(dbFile.getName(), 3, 0);
             songNameTable = Utility.createEmptyHeapFile(songNameFile.getName(), 2, songNameTableTd);
-            Database.getCatalog().addTable(btree);
             Database.getCatalog().addTable(songNameTable);
-            createDatabase(songFolder);
+            trackStats = TrackStatsTable.create(trackStatsFile, tid);
+            extractor.setTrackStats(trackStats.asMap());
+            aliases = AliasTable.create(aliasFile, tid);
+            trackHashes = TrackHashes.create(trackHashesDir);
+            reserveSmallTables();
+            if (detectDuplicates) {
+                duplicateDetector = new DuplicateDetector(trackStats.asMap());
+            }
+            btree = createDatabase(songFolder);
+            Database.getCatalog().addTable(btree);
+            purger = new IndexPurger(btree, trackHashes, tid, dbLock.writeLock());
+            warmUp(pinUpperLevels);
         } else {
-            btree = BTreeUtility.openBTreeFile(3, dbFile, 0);
+            btree = readOnly ? BTreeUtility.openBTreeFileReadOnly(3, dbFile, 0)
+                    : BTreeUtility.openBTreeFile(3, dbFile, 0);
             Database.getCatalog().addTable(btree);
             songNameTable = Utility.openHeapFile(2, songNameFile, songNameTableTd);
             Database.getCatalog().addTable(songNameTable);
+            try {
+                trackStats = TrackStatsTable.open(trackStatsFile, btree, tid);
+                aliases = AliasTable.open(aliasFile, tid, readOnly);
+                trackHashes = readOnly ? null : TrackHashes.open(trackHashesDir, btree, tid);
+            } catch (DbException | TransactionAbortedException e) {
+                throw new IOException("error reading track stats, aliases or track hashes", e);
+            }
+            extractor.setTrackStats(trackStats.asMap());
+            reserveSmallTables();
+            purger = new IndexPurger(btree, trackHashes, tid, dbLock.writeLock());
+            if (detectDuplicates) {
+                duplicateDetector = new DuplicateDetector(trackStats.asMap());
+            }
+            warmUp(pinUpperLevels);
+            loadSongTable();
+            if (readOnly) {
+                return;
+            }
+            sync(songFolder);
         }
+        ScheduledExecutorService hotSetSaver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hot-set-saver");
+            t.setDaemon(true);
+            return t;
+        });
+        hotSetSaver.scheduleWithFixedDelay(this::saveHotSet, HOT_SET_SAVE_SECONDS, HOT_SET_SAVE_SECONDS,
+                TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveHotSet, "hot-set-saver"));
     }
 
-    private void createDatabase(File songFolder) {
+    /**
+     * Gives the song and track stats tables a minimum quota of the buffer pool.
+     * Ingest goes back to both for every song, and without a quota the index pages
+     * it reads and dirties would keep pushing them out.
+     */
+    private void reserveSmallTables() {
+        BufferPool pool = Database.getBufferPool();
+        try {
+            pool.setTableQuota(songNameTable.getId(), SMALL_TABLE_RESERVE_BYTES, Long.MAX_VALUE);
+            pool.setTableQuota(trackStats.getTableId(), SMALL_TABLE_RESERVE_BYTES, Long.MAX_VALUE);
+        } catch (DbException e) {
+            // there is no maximum, so nothing is evicted
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the buffer pool ready for queries after a restart, so that the first
+     * matches aren't slowed down by faulting the index in a page at a time: pins
+     * the root and internal pages if asked to, then reads in the pages that were
+     * hottest when the hot set was last saved, in file order with as few reads as
+     * possible. If the internal pages can't be pinned, for a pool too small to
+     * hold them, queries run without them pinned.
+     */
+    private void warmUp(boolean pinUpperLevels) {
+        long start = System.currentTimeMillis();
+        int pinned = 0;
+        int cached = 0;
+        if (pinUpperLevels) {
+            try {
+                pinned = btree.pinUpperLevels(tid);
+            } catch (DbException e) {
+                // nothing was left pinned
+                System.out.println("not pinning the index's internal pages: "+e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            cached = btree.cacheHotSet(hotSetFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.out.println("warm up: "+pinned+" pages pinned, "+cached+" hot pages read in "
+                +(System.currentTimeMillis() - start)+" ms");
+    }
+
+    /**
+     * Saves the ids of the index's most used pages for the next warmUp. Runs
+     * periodically and at shutdown.
+     */
+    public void saveHotSet() {
+        try {
+            // most used index pages, leaving a quarter of the pool free
+            long hotSetBytes = Database.getBufferPool().getBudgetBytes() * 3 / 4;
+            btree.saveHotSet(hotSetFile, (int) (hotSetBytes / btree.getPageSize()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the song table into the track dictionary and restarts the purges that
+     * were interrupted by the last shutdown.
+     */
+    private void loadSongTable() {
+        dbLock.writeLock().lock();
+        try {
+            List<Integer> tombstoned = new ArrayList<Integer>();
+            int maxTrackId = -1;
+            try {
+                SeqScan f = new SeqScan(tid, songNameTable.getId());
+                f.open();
+                while (f.hasNext()) {
+                    Tuple t = f.next();
+                    int trackId = ((IntField) t.getField(1)).getValue();
+                    songRows.put(trackId, t.getRecordId());
+                    if (trackId < 0) {
+                        trackId = tombstone(trackId);
+                        tombstoned.add(trackId);
+                        // a library that predates the stats table has them for removed tracks too
+                        if (!readOnly) {
+                            trackStats.remove(trackId);
+                        }
+                    } else {
+                        tracks.put(trackId, ((StringField) t.getField(0)).getValue());
+                    }
+                    maxTrackId = Math.max(maxTrackId, trackId);
+                }
+                f.close();
+            } catch (DbException | TransactionAbortedException | IOException e) {
+                e.printStackTrace();
+            }
+            nextTrackId = Math.max(nextTrackId, maxTrackId + 1);
+            for (int trackId : tombstoned) {
+                // a read-only library just keeps the leftover points out of its matches
+                if (removedTracks.add(trackId) && !readOnly) {
+                    schedulePurge(trackId);
+                }
+            }
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A removed song's row keeps its name but stores its track id as -1 - trackId
+     * until the song's points have been purged from the index, so the song table
+     * keeps its layout. The mapping is its own inverse.
+     */
+    private static int tombstone(int trackId) {
+        return -1 - trackId;
+    }
+
+    /**
+     * Brings the library up to date with songFolder without rebuilding the index.
+     * Songs are identified by file name. New files are fingerprinted and inserted
+     * under fresh track ids; songs whose files are gone are tombstoned in the song
+     * table right away, which hides them from matching, and their points are purged
+     * from the index in the background. Track ids are never reused while the old
+     * points might still be around, so a file that is removed and added back again
+     * is just a new song. A song recorded as a duplicate of another stays an alias of
+     * it until its file is removed; if the other song's file is removed first, the
+     * alias takes over the track.
+     * 
+     * @throws IllegalStateException if the library is open read-only
+     */
+    public void sync(File songFolder) throws IOException {
+        if (readOnly) {
+            throw new IllegalStateException("the library is open read-only");
+        }
+        dbLock.writeLock().lock();
+        try {
+            Map<String, Integer> liveTracks = tracks.byName();
+            Map<String, Integer> aliasTracks = aliases.byName();
+            Set<String> present = new HashSet<String>();
+            int added = 0;
+            for (File song : songFolder.listFiles()) {
+                String name = song.getName();
+                // filter out .DS_STORE
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                present.add(name);
+                if (!liveTracks.containsKey(name) && !aliasTracks.containsKey(name) && addSong(song)) {
+                    added++;
+                }
+            }
+            int removed = 0;
+            // aliases first, so that a removed track is only taken over by an alias that is still there
+            for (Map.Entry<String, Integer> e : aliasTracks.entrySet()) {
+                if (!present.contains(e.getKey()) && removeAlias(e.getKey(), e.getValue())) {
+                    removed++;
+                }
+            }
+            for (Map.Entry<String, Integer> e : liveTracks.entrySet()) {
+                if (!present.contains(e.getKey()) && removeSong(e.getKey(), e.getValue())) {
+                    removed++;
+                }
+            }
+            Database.getBufferPool().flushAllPages();
+            if (added > 0 || removed > 0) {
+                System.out.println("synced library: "+added+" songs added, "+removed+" removed");
+            }
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fingerprints song and inserts its points and its song table row under the next
+     * free track id, or, if duplicates are detected and it is one, records it as an
+     * alias of the track it duplicates. Must hold the write lock.
+     * 
+     * @return whether the song was added
+     */
+    private boolean addSong(File song) {
+        int trackId = nextTrackId;
+        Set<DataPoint> dataPoints = fingerprintSong(song, trackId);
+        // error reading in song
+        if (dataPoints == null) {
+            return false;
+        }
+        if (duplicateDetector != null && addAlias(song.getName(), dataPoints, null)) {
+            return true;
+        }
+        nextTrackId++;
+        System.out.println("adding "+song.getName()+" as track "+trackId+", "+dataPoints.size()+" points");
+        // inserting in key order keeps consecutive inserts on the same leaves
+        List<DataPoint> sorted = new ArrayList<DataPoint>(dataPoints);
+        sorted.sort(Comparator.comparingInt(DataPoint::getHash));
+        int inserted = 0;
+        try {
+            // recorded first, so that whatever gets inserted can be purged
+            trackHashes.put(trackId, dataPoints);
+            for (DataPoint p : sorted) {
+                Database.getBufferPool().insertTuple(tid, btree.getId(), toTuple(p));
+                if (++inserted % FLUSH_INTERVAL == 0) {
+                    Database.getBufferPool().flushAllPages();
+                }
+            }
+            insertSongRow(song.getName(), trackId);
+            trackStats.put(TrackStats.of(trackId, dataPoints));
+            tracks.put(trackId, song.getName());
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("error adding "+song.getName()+" after "+inserted+" points, removing it again");
+            if (inserted == 0) {
+                trackHashes.remove(trackId);
+            } else {
+                // the points that made it in have no song row; the tombstone gets them purged
+                try {
+                    insertSongRow(song.getName(), tombstone(trackId));
+                    removedTracks.add(trackId);
+                    schedulePurge(trackId);
+                } catch (Exception e2) {
+                    e2.printStackTrace();
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records the song as an alias if its points duplicate an indexed track. A song
+     * that can't be checked is indexed as usual. Must hold the write lock.
+     * 
+     * @param loaded while a new library is bulk loaded, the points of the songs loaded
+     * so far by hash, which the song is checked against instead of the index
+     * @return whether the song was recorded as an alias
+     */
+    private boolean addAlias(String name, Set<DataPoint> dataPoints, Map<Integer, List<DataPoint>> loaded) {
+        try {
+            DuplicateDetector.Match duplicate = loaded == null
+                    ? duplicateDetector.findDuplicate(dataPoints, btree, tid)
+                    : duplicateDetector.findDuplicate(dataPoints, loaded);
+            if (duplicate == null) {
+                return false;
+            }
+            aliases.put(name, duplicate.trackId);
+            System.out.println(String.format("%s duplicates %s (track %d, %.0f%% of points aligned), added as an alias",
+                    name, tracks.get(duplicate.trackId), duplicate.trackId, duplicate.alignedFraction * 100));
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Must hold the write lock.
+     * 
+     * @return whether the alias was removed
+     */
+    private boolean removeAlias(String name, int trackId) {
+        try {
+            aliases.remove(name);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        System.out.println("removed "+name+" (alias of track "+trackId+")");
+        return true;
+    }
+
+    /**
+     * Replaces the song's row with a tombstone and queues its points for purging,
+     * unless the song has an alias, which then takes over the track and its points.
+     * Must hold the write lock.
+     * 
+     * @return whether the song was removed
+     */
+    private boolean removeSong(String name, int trackId) {
+        String heir = aliases.anyAliasOf(trackId);
+        try {
+            if (!deleteSongRow(trackId)) {
+                return false;
+            }
+            if (heir != null) {
+                aliases.remove(heir);
+                insertSongRow(heir, trackId);
+                tracks.put(trackId, heir);
+                System.out.println("removed "+name+", track "+trackId+" is now "+heir);
+                return true;
+            }
+            // hide the song from queries before its name stops resolving
+            removedTracks.add(trackId);
+            tracks.remove(trackId);
+            trackStats.remove(trackId);
+            insertSongRow(name, tombstone(trackId));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        System.out.println("removed "+name+" (track "+trackId+")");
+        schedulePurge(trackId);
+        return true;
+    }
+
+    /**
+     * Inserts a song table row. Must hold the write lock.
+     */
+    private void insertSongRow(String name, int storedTrackId)
+            throws DbException, TransactionAbortedException, IOException {
+        Tuple t = songTuple(name, storedTrackId);
+        Database.getBufferPool().insertTuple(tid, songNameTable.getId(), t);
+        songRows.put(storedTrackId, t.getRecordId());
+    }
+
+    /**
+     * Deletes the song table row storing storedTrackId. Must hold the write lock.
+     */
+    private boolean deleteSongRow(int storedTrackId) throws DbException, TransactionAbortedException, IOException {
+        RecordId rid = songRows.remove(storedTrackId);
+        if (rid == null) {
+            return false;
+        }
+        Tuple t = new Tuple(songNameTableTd);
+        t.setRecordId(rid);
+        Database.getBufferPool().deleteTuple(tid, t);
+        return true;
+    }
+
+    private void schedulePurge(int trackId) {
+        purgeExecutor.execute(() -> {
+            try {
+                int purged = purger.purge(trackId);
+                dbLock.writeLock().lock();
+                try {
+                    deleteSongRow(tombstone(trackId));
+                    Database.getBufferPool().flushAllPages();
+                } finally {
+                    dbLock.writeLock().unlock();
+                }
+                trackHashes.remove(trackId);
+                removedTracks.remove(trackId);
+                System.out.println("purged "+purged+" points of removed track "+trackId);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Waits for the purges queued so far to finish.
+     * 
+     * @return whether they finished within timeoutMillis
+     */
+    public boolean awaitPurges(long timeoutMillis) throws InterruptedException {
+        Future<?> marker = purgeExecutor.submit(() -> { });
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of removed songs whose points are still being purged
+     */
+    public int getPendingPurges() {
+        return removedTracks.size();
+    }
+
+    /**
+     * Fingerprints every song in songFolder and bulk loads the points into a new
+     * index, rather than inserting them one at a time. If duplicates are detected,
+     * the points loaded are also kept in memory until the index is built, and a song
+     * that duplicates one loaded before it is recorded as an alias instead.
+     */
+    private BTreeFile createDatabase(File songFolder) throws IOException {
         System.out.println("creating db...");
+        BTreeBulkLoader loader = new BTreeBulkLoader(dbFile, btreeTd, 0, INDEX_PAGE_SIZE);
+        // the points loaded so far, by hash, to check the next songs against
+        Map<Integer, List<DataPoint>> loaded = duplicateDetector == null ? null
+                : new HashMap<Integer, List<DataPoint>>();
         int songNum = 0;
         int tupCount = 0;
         for (File song : songFolder.listFiles()) {
@@ -73,46 +595,42 @@ public class SongLibrary {
                 continue;
             }
             System.out.println("on song "+songNum);
-            Wave wave = new Wave(song.getAbsolutePath());
-            double[][] spectrogram = ReadAudio.extractSpectogram(wave, name, false);
+            Set<DataPoint> dataPoints = fingerprintSong(song, songNum);
             // error reading in song
-            if (spectrogram == null) {
+            if (dataPoints == null) {
+                continue;
+            }
+            if (loaded != null && addAlias(name, dataPoints, loaded)) {
                 continue;
             }
-            Set<DataPoint> dataPoints = extractor.extractDataPoints(spectrogram, songNum);
             System.out.println(name+" has "+dataPoints.size());
             for (DataPoint p  : dataPoints) {
-                Tuple tupleDataPoint = new Tuple(btreeTd);
-                tupleDataPoint.setField(0, new IntField(p.getHash()));
-                tupleDataPoint.setField(1, new IntField(p.getTimeOffset()));
-                tupleDataPoint.setField(2, new IntField(p.getTrackId()));
                 try {
-                    Database.getBufferPool().insertTuple(tid, btree.getId(), tupleDataPoint);
+                    loader.add(toTuple(p));
                     tupCount++;
                 } catch (Exception e) {
-                    System.out.println("happening on song "+songNum);
-                    e.printStackTrace();
-                    try {
-                        Database.getBufferPool().flushAllPages();
-                    } catch (Exception e2) {
-                        e2.printStackTrace();
-                    }
-                    System.out.println("error creating db, exiting early. "+tupCount+" tuples inserted");
-                    System.exit(0);
+                    throw new IOException("error creating db on song "+songNum+" after "+tupCount+" tuples", e);
+                }
+                if (loaded != null) {
+                    loaded.computeIfAbsent(p.getHash(), h -> new ArrayList<DataPoint>()).add(p);
                 }
             }
-            Tuple songTuple = new Tuple(songNameTableTd);
-            songTuple.setField(0, new StringField(name, Type.STRING_LEN));
-            songTuple.setField(1, new IntField(songNum));
             try {
-                Database.getBufferPool().insertTuple(tid, songNameTable.getId(), songTuple);
+                trackHashes.put(songNum, dataPoints);
+                insertSongRow(name, songNum);
+                trackStats.put(TrackStats.of(songNum, dataPoints));
+                tracks.put(songNum, name);
             } catch (Exception e) {
                 e.printStackTrace();
             }
             System.out.println("done!");
             songNum++;
         }
+        nextTrackId = songNum;
         System.out.println("total points extracted: "+tupCount);
+        System.out.println("fingerprint cache: "+fingerprintCache.getHits()+" hits, "
+                +fingerprintCache.getMisses()+" misses");
+        System.out.println("frame gate: "+extractor.getFrameGate());
         try {
             System.out.println("Flushing pages...");
             Database.getBufferPool().flushAllPages();
@@ -120,8 +638,17 @@ public class SongLibrary {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        BTreeFile btree;
+        try {
+            System.out.println("Building index from "+loader.numRuns()+" sorted runs...");
+            btree = loader.finish();
+            System.out.println("done!");
+        } catch (Exception e) {
+            throw new IOException("error building index", e);
+        }
         try {
             DbFileIterator it = btree.iterator(tid);
+            it.setSequentialScan(true);
             it.open();
             int readCount = 0;
             while (it.hasNext()) {
@@ -133,87 +660,333 @@ public class SongLibrary {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return btree;
+    }
+    
+    private Tuple toTuple(DataPoint p) {
+        Tuple tupleDataPoint = new Tuple(btreeTd);
+        tupleDataPoint.setField(0, new IntField(p.getHash()));
+        tupleDataPoint.setField(1, new IntField(p.getTimeOffset()));
+        tupleDataPoint.setField(2, new IntField(p.getTrackId()));
+        return tupleDataPoint;
+    }
+    
+    private Tuple songTuple(String name, int storedTrackId) {
+        Tuple songTuple = new Tuple(songNameTableTd);
+        songTuple.setField(0, new StringField(name, Type.STRING_LEN));
+        songTuple.setField(1, new IntField(storedTrackId));
+        return songTuple;
+    }
+    
+    /**
+     * Fingerprints a library song, reusing the cached fingerprints if this exact file
+     * has been fingerprinted with the same parameters before.
+     * 
+     * @return the song's points, or null if it couldn't be read
+     */
+    private Set<DataPoint> fingerprintSong(File song, int trackId) {
+        String key = null;
+        try {
+            key = fingerprintCache.keyFor(song);
+            Set<DataPoint> cached = fingerprintCache.get(key, trackId);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Wave wave = new Wave(song.getAbsolutePath());
+        short[] samples = ReadAudio.extractSamples(wave, song.getName());
+        if (samples == null) {
+            return null;
+        }
+        Set<DataPoint> dataPoints = fingerprinter.fingerprint(samples, trackId);
+        if (key != null) {
+            try {
+                fingerprintCache.put(key, dataPoints);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return dataPoints;
     }
     
     public long matchSong(File file) throws NoSuchElementException, DbException, TransactionAbortedException, IOException {
-        long time = System.currentTimeMillis();
-        Wave wave = new Wave(file.getAbsolutePath());
-        double[][] spectrogram = ReadAudio.extractSpectogram(wave, file.getName(), false);
-        if (spectrogram == null) {
-            // error reading in sample
+        long skippedBefore = extractor.getFrameGate().getFramesSkipped();
+        MatchResult result = match(file);
+        if (result == null) {
+            // error reading in sample or the index
             return -1;
         }
-        // assigning a unique song id
-        Set<DataPoint> samplePoints = extractor.extractDataPoints(spectrogram, -1);
-        try {
-            Map<Integer, Double> songIdToScore = extractor.matchPoints(samplePoints, btree, tid);
-            long duration = System.currentTimeMillis() - time;
-            Map<String, Double> convertedScores = convertToSongNames(songIdToScore);
-            System.out.println("Scores: ");
-            convertedScores.entrySet().stream()
-                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
-                .limit(3)
-                .forEach(System.out::println);
-            //System.out.println("Scores: "+convertedScores.);
-            Database.getBufferPool().flushAllPages();
-            return duration;
+        System.out.println(result.getNumSamplePoints()+" sample points, "
+                +(extractor.getFrameGate().getFramesSkipped() - skippedBefore)+" frames skipped");
+        System.out.println("Scores: ");
+        result.getScores().entrySet().stream()
+            .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+            .limit(3)
+            .forEach(System.out::println);
+        //System.out.println("Scores: "+convertedScores.);
+        System.out.println("Trace: "+result.getTrace());
+        return (long) result.getTrace().getTotalMillis();
+    }
+    
+    /**
+     * Decodes and fingerprints a sample and scores it against the library, tracing
+     * every stage. Any number of threads can match samples at once.
+     * 
+     * @return the scores and the trace, or null if the sample or the index couldn't be read
+     */
+    public MatchResult match(File sample) {
+        return traced(() -> {
+            long start = System.nanoTime();
+            Wave wave = new Wave(sample.getAbsolutePath());
+            MatchTrace.current().addStageNanos(Stage.DECODE, System.nanoTime() - start);
+            return match(wave, sample.getName());
+        });
+    }
+    
+    /**
+     * Like match(File), for a sample that is decoded already.
+     */
+    public MatchResult match(Wave wave, String name) {
+        return traced(() -> {
+            Set<DataPoint> samplePoints = fingerprintSample(wave, name);
+            return samplePoints == null ? null : match(samplePoints);
+        });
+    }
+    
+    /**
+     * Like match(File), for a sample that is fingerprinted already.
+     */
+    public MatchResult match(Set<DataPoint> samplePoints) {
+        return traced(() -> {
+            Map<String, Double> scores = scoreSample(samplePoints);
+            return scores == null ? null : new MatchResult(scores, samplePoints.size(), MatchTrace.current());
+        });
+    }
+    
+    /**
+     * Runs match under a trace of its own, recorded in the match metrics if it succeeds,
+     * unless this thread is tracing a bigger match already, which then gets the times.
+     */
+    private MatchResult traced(Supplier<MatchResult> match) {
+        MatchTrace trace = MatchTrace.begin();
+        MatchResult result = null;
+        try {
+            result = match.get();
+            return result;
+        } finally {
+            if (trace != null) {
+                trace.end();
+                if (result != null) {
+                    matchMetrics.record(trace);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the per-stage latency histograms of every match so far
+     */
+    public MatchMetrics getMatchMetrics() {
+        return matchMetrics;
+    }
+    
+    /**
+     * Fingerprints a sample and scores it against the library, like matchSong but
+     * returning the scores instead of printing them. Any number of threads can
+     * identify samples at once.
+     * 
+     * @return scores by song name, or null if the sample or the index couldn't be read
+     */
+    public Map<String, Double> identify(File sample) {
+        MatchResult result = match(sample);
+        return result == null ? null : result.getScores();
+    }
+    
+    /**
+     * Scores already fingerprinted sample points against the library.
+     * 
+     * @return scores by song name, or null if the index couldn't be read
+     */
+    public Map<String, Double> identify(Set<DataPoint> samplePoints) {
+        MatchResult result = match(samplePoints);
+        return result == null ? null : result.getScores();
+    }
+    
+    /**
+     * @return the sample's points, or null if it couldn't be read
+     */
+    public Set<DataPoint> fingerprintSample(File sample) {
+        return fingerprintSample(new Wave(sample.getAbsolutePath()), sample.getName());
+    }
+    
+    /**
+     * @return the sample's points, or null if it couldn't be read
+     */
+    public Set<DataPoint> fingerprintSample(Wave wave, String name) {
+        long start = System.nanoTime();
+        short[] samples = ReadAudio.extractSamples(wave, name);
+        MatchTrace trace = MatchTrace.current();
+        if (trace != null) {
+            trace.addStageNanos(Stage.RESAMPLE, System.nanoTime() - start);
+        }
+        if (samples == null) {
+            return null;
+        }
+        return fingerprinter.fingerprint(samples, -1);
+    }
+    
+    /**
+     * Matches sample points as a query of their own, see beginQuery.
+     * 
+     * @return scores by song name, or null if the index couldn't be read
+     */
+    private Map<String, Double> scoreSample(Set<DataPoint> samplePoints) {
+        TransactionId queryTid = beginQuery();
+        MatchTrace trace = MatchTrace.current();
+        long start = System.nanoTime();
+        long probeNanos = trace == null ? 0 : trace.getStageNanos(Stage.PROBE);
+        try {
+            Map<String, Double> scores = convertToSongNames(extractor.matchPoints(samplePoints, btree, queryTid));
+            if (trace != null) {
+                // probes made by other threads can add up to more than the elapsed time
+                long elapsed = System.nanoTime() - start;
+                trace.addStageNanos(Stage.SCORE,
+                        Math.max(0, elapsed - (trace.getStageNanos(Stage.PROBE) - probeNanos)));
+            }
+            return scores;
         } catch (Exception e) {
             e.printStackTrace();
-            return -1;
+            return null;
+        } finally {
+            endQuery(queryTid);
+        }
+    }
+    
+    /**
+     * Starts a query: a read transaction of its own under the read lock, or, when
+     * the library is read-only, neither.
+     */
+    private TransactionId beginQuery() {
+        if (readOnly) {
+            return tid;
+        }
+        TransactionId queryTid = new TransactionId();
+        dbLock.readLock().lock();
+        return queryTid;
+    }
+    
+    /**
+     * Ends a query. A query under the read lock never dirties a page, and the pool
+     * keeps no page locks, so there is nothing for BufferPool.transactionComplete to
+     * do; it isn't called, since it locks the whole pool and scans every cached page,
+     * which would serialize the end of every concurrent query.
+     */
+    private void endQuery(TransactionId queryTid) {
+        if (readOnly) {
+            return;
         }
+        dbLock.readLock().unlock();
+    }
+    
+    public boolean isReadOnly() {
+        return readOnly;
     }
     
-    public Set<String> getSongNames() throws NoSuchElementException, TransactionAbortedException, DbException {
-        Set<String> songNames = new HashSet<String>();
-        SeqScan f = new SeqScan(tid, songNameTable.getId());
-        f.open();
-        while (f.hasNext()) {
-            songNames.add(((StringField) f.next().getField(0)).getValue()); 
+    /**
+     * Recognizes audio from an opened capture line (a microphone, or a WavReplayLine
+     * for testing) while it is still being recorded, stopping as soon as the match
+     * is confident or after maxListenMillis.
+     */
+    public LiveMatch matchLive(TargetDataLine line, long maxListenMillis) throws DbException, TransactionAbortedException {
+        TransactionId queryTid = beginQuery();
+        try {
+            return new LiveRecognizer(this, extractor, btree, queryTid).recognize(line, maxListenMillis);
+        } finally {
+            endQuery(queryTid);
         }
-        return songNames;
     }
     
-    private Map<String, Double> convertToSongNames(Map<Integer, Double> songIdToScore) throws TransactionAbortedException, DbException {
-        int numSongs = songIdToScore.size();
+    /**
+     * Logs the known songs played in a long recording, sliding a windowSeconds
+     * analysis window over it in steps of hopSeconds.
+     * 
+     * @return the play segments found, or null if the recording couldn't be read
+     */
+    public MonitorReport monitor(File recording, double windowSeconds, double hopSeconds) throws DbException, TransactionAbortedException {
+        TransactionId queryTid = beginQuery();
+        try {
+            return new BroadcastMonitor(this, extractor, btree, queryTid, fingerprinter,
+                    windowSeconds, hopSeconds).monitor(recording);
+        } finally {
+            endQuery(queryTid);
+        }
+    }
+    
+    public MonitorReport monitor(File recording) throws DbException, TransactionAbortedException {
+        return monitor(recording, BroadcastMonitor.DEFAULT_WINDOW_SECONDS, BroadcastMonitor.DEFAULT_HOP_SECONDS);
+    }
+    
+    String getSongName(int trackId) {
+        return tracks.get(trackId);
+    }
+    
+    public Set<String> getSongNames() {
+        return tracks.byName().keySet();
+    }
+    
+    private Map<String, Double> convertToSongNames(Map<Integer, Double> songIdToScore) {
         Map<String, Double> songToScore = new HashMap<String, Double>();
-        SeqScan f = new SeqScan(tid, songNameTable.getId());
-        f.open();
-        while (f.hasNext()) {
-            if (songToScore.size() == numSongs) {
-                break;
-            }
-            Tuple curTup = f.next();
-            int trackId = ((IntField) curTup.getField(1)).getValue();
-            if (songIdToScore.containsKey(trackId)) {
-                String songName = ((StringField) curTup.getField(0)).getValue();
-                songToScore.put(songName, songIdToScore.get(trackId));
+        for (Map.Entry<Integer, Double> e : songIdToScore.entrySet()) {
+            String songName = tracks.get(e.getKey());
+            // tracks removed since the points were read don't resolve
+            if (songName != null) {
+                songToScore.put(songName, e.getValue());
             }
         }
         return songToScore;
     }
     
-    public Map<String, Double> getDatabaseFrequencies() throws NoSuchElementException, DbException, TransactionAbortedException {
-        
+    /**
+     * @return the number of points each song has in the index, from the track stats
+     */
+    public Map<String, Double> getDatabaseFrequencies() {
         Map<Integer, Double> songToCount = new HashMap<Integer, Double>();
-        DbFileIterator it = btree.iterator(tid);
-        it.open();
-        int count = 0;
-        while (it.hasNext()) {
-            Tuple t = it.next();
-            int trackId = ((IntField) t.getField(2)).getValue();
-            Double d = songToCount.get(trackId);
-            if (d == null) {
-                d = (double) 0;
-            }
-            d++;
-            count++;
-            songToCount.put(trackId, d);
-            if (count % 100000 == 0) {
-                System.out.println(count +" tuples processed");
-            }
-         }
+        long count = 0;
+        for (TrackStats stats : trackStats.all()) {
+            songToCount.put(stats.getTrackId(), (double) stats.getNumPoints());
+            count += stats.getNumPoints();
+        }
         System.out.println(count+ " tuples in db");
         return convertToSongNames(songToCount);
-            
+    }
+    
+    /**
+     * @return the song each alias duplicates, by alias
+     */
+    public Map<String, String> getAliases() {
+        Map<String, String> byAlias = new HashMap<String, String>();
+        for (Map.Entry<String, Integer> e : aliases.byName().entrySet()) {
+            String name = tracks.get(e.getValue());
+            if (name != null) {
+                byAlias.put(e.getKey(), name);
+            }
+        }
+        return byAlias;
+    }
+    
+    /**
+     * @return every live song's index statistics, by song name
+     */
+    public Map<String, TrackStats> getTrackStats() {
+        Map<String, TrackStats> byName = new HashMap<String, TrackStats>();
+        for (TrackStats stats : trackStats.all()) {
+            String name = tracks.get(stats.getTrackId());
+            if (name != null) {
+                byName.put(name, stats);
+            }
+        }
+        return byName;
     }
 }
@@ -0,0 +1,70 @@
+package songs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the song table's live rows: the name of every track id.
+ * <p>
+ * Track ids are handed out consecutively, so the names are kept in an array indexed
+ * by track id, and a lookup is a bounds check and an array read. Lookups don't lock:
+ * writers store the element and then republish the array through a volatile field,
+ * which makes the element visible to every reader that reads the field afterwards.
+ * Writes are rare (one per ingested or removed song) and serialized.
+ */
+class TrackDictionary {
+
+    private volatile String[] names = new String[16];
+    private int size = 0;
+
+    /**
+     * @return the track's song name, or null if there is no such live track
+     */
+    String get(int trackId) {
+        String[] current = names;
+        return trackId >= 0 && trackId < current.length ? current[trackId] : null;
+    }
+
+    synchronized void put(int trackId, String name) {
+        if (trackId < 0) {
+            throw new IllegalArgumentException("track ids are non-negative, got " + trackId);
+        }
+        String[] current = names;
+        if (trackId >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, trackId + 1));
+        }
+        if (current[trackId] == null) {
+            size++;
+        }
+        current[trackId] = name;
+        names = current;
+    }
+
+    synchronized void remove(int trackId) {
+        String[] current = names;
+        if (trackId >= 0 && trackId < current.length && current[trackId] != null) {
+            current[trackId] = null;
+            size--;
+            names = current;
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a snapshot mapping every live song name to its track id
+     */
+    Map<String, Integer> byName() {
+        String[] current = names;
+        Map<String, Integer> byName = new HashMap<String, Integer>();
+        for (int trackId = 0; trackId < current.length; trackId++) {
+            if (current[trackId] != null) {
+                byName.put(current[trackId], trackId);
+            }
+        }
+        return byName;
+    }
+}
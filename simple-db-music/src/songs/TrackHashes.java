@@ -0,0 +1,198 @@
+package songs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import fingerprint.DataPoint;
+import simpledb.BTreeFile;
+import simpledb.DbException;
+import simpledb.DbFileIterator;
+import simpledb.IntField;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
+
+/**
+ * Sidecar record of the distinct hashes each track has in the index, so that a
+ * removed track's points can be deleted by key instead of found with a scan over
+ * the whole index. A track's hashes are written before its points are inserted and
+ * deleted once they have been purged.
+ * <p>
+ * Each track has one small file holding its hashes in ascending order, delta-encoded
+ * as varints.
+ */
+class TrackHashes {
+
+    private static final int MAGIC = 0x54484831; // "THH1"
+
+    private final File dir;
+
+    private TrackHashes(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Creates an empty record, replacing any existing one.
+     */
+    static TrackHashes create(File dir) throws IOException {
+        if (dir.exists()) {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+        } else if (!dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        return new TrackHashes(dir);
+    }
+
+    /**
+     * Opens the record. A library built before it existed gets it created from one
+     * scan over the index.
+     */
+    static TrackHashes open(File dir, BTreeFile btree, TransactionId tid)
+            throws IOException, DbException, TransactionAbortedException {
+        if (dir.exists()) {
+            return new TrackHashes(dir);
+        }
+        System.out.println("recording track hashes from the index...");
+        // written to a temporary directory and renamed into place, so that an
+        // interrupted rebuild is started over rather than taken as complete
+        File tmp = new File(dir.getPath() + ".tmp");
+        TrackHashes t = create(tmp);
+        t.rebuild(btree, tid);
+        Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new TrackHashes(dir);
+    }
+
+    private void rebuild(BTreeFile btree, TransactionId tid)
+            throws IOException, DbException, TransactionAbortedException {
+        // the index is in hash order, so each track's hashes come ascending, and its
+        // repeats of a hash in a run
+        Map<Integer, ByteArrayOutputStream> encoded = new HashMap<Integer, ByteArrayOutputStream>();
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> lastHash = new HashMap<Integer, Integer>();
+        DbFileIterator it = btree.iterator(tid);
+        it.setSequentialScan(true);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int hash = ((IntField) t.getField(0)).getValue();
+            int trackId = ((IntField) t.getField(2)).getValue();
+            Integer previous = lastHash.put(trackId, hash);
+            if (previous != null && previous == hash) {
+                continue;
+            }
+            ByteArrayOutputStream out = encoded.computeIfAbsent(trackId, k -> new ByteArrayOutputStream());
+            writeVarInt(out, previous == null ? hash : hash - previous);
+            counts.merge(trackId, 1, Integer::sum);
+        }
+        it.close();
+        for (Map.Entry<Integer, ByteArrayOutputStream> e : encoded.entrySet()) {
+            write(e.getKey(), counts.get(e.getKey()), e.getValue().toByteArray());
+        }
+    }
+
+    /**
+     * Records the track's hashes, replacing any recorded before.
+     */
+    void put(int trackId, Set<DataPoint> points) throws IOException {
+        Set<Integer> hashes = new TreeSet<Integer>();
+        for (DataPoint p : points) {
+            hashes.add(p.getHash());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(hashes.size() * 3);
+        int previous = 0;
+        for (int hash : hashes) {
+            writeVarInt(out, hash - previous);
+            previous = hash;
+        }
+        write(trackId, hashes.size(), out.toByteArray());
+    }
+
+    /**
+     * @return the track's hashes in ascending order, or null if none are recorded
+     */
+    int[] get(int trackId) throws IOException {
+        File entry = entryFile(trackId);
+        if (!entry.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic in " + entry);
+            }
+            int[] hashes = new int[in.readInt()];
+            int hash = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                hash += readVarInt(in);
+                hashes[i] = hash;
+            }
+            return hashes;
+        } finally {
+            in.close();
+        }
+    }
+
+    void remove(int trackId) {
+        entryFile(trackId).delete();
+    }
+
+    /**
+     * Writes an entry to a temporary file and renames it into place, so a crash never
+     * leaves a truncated entry behind.
+     */
+    private void write(int trackId, int count, byte[] deltas) throws IOException {
+        File tmp = File.createTempFile("track" + trackId, ".tmp", dir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            out.write(deltas);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), entryFile(trackId).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File entryFile(int trackId) {
+        return new File(dir, trackId + ".hashes");
+    }
+
+    // deltas are written as unsigned ints, so that one spanning the sign wraps around
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("malformed varint");
+    }
+}
@@ -0,0 +1,154 @@
+package songs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fingerprint.TrackStats;
+import simpledb.BTreeFile;
+import simpledb.Database;
+import simpledb.DbException;
+import simpledb.DbFileIterator;
+import simpledb.HeapFile;
+import simpledb.IntField;
+import simpledb.RecordId;
+import simpledb.SeqScan;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
+import simpledb.TupleDesc;
+import simpledb.Type;
+import simpledb.Utility;
+
+/**
+ * Persistent per-track statistics, one row per live track, kept in step with the
+ * index as songs are ingested and removed so that nothing has to scan the index to
+ * learn how big a track is. The rows are mirrored in memory for matching; modifying
+ * calls must hold the library's write lock.
+ */
+class TrackStatsTable {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+            new String[] {"Track ID", "Points", "Frames", "Distinct Hashes"});
+    private final HeapFile table;
+    private final TransactionId tid;
+    private final Map<Integer, TrackStats> stats = new ConcurrentHashMap<Integer, TrackStats>();
+    // where each track's row is, so that removing a track doesn't scan the table
+    private final Map<Integer, RecordId> rows = new HashMap<Integer, RecordId>();
+
+    private TrackStatsTable(HeapFile table, TransactionId tid) {
+        this.table = table;
+        this.tid = tid;
+    }
+
+    int getTableId() {
+        return table.getId();
+    }
+
+    /**
+     * Creates an empty table, replacing any existing file.
+     */
+    static TrackStatsTable create(File file, TransactionId tid) throws IOException {
+        return new TrackStatsTable(Utility.createEmptyHeapFile(file.getPath(), 4, TD), tid);
+    }
+
+    /**
+     * Opens the table and reads it into memory. A library built before the table
+     * existed gets it created from one scan over the index.
+     */
+    static TrackStatsTable open(File file, BTreeFile btree, TransactionId tid)
+            throws IOException, DbException, TransactionAbortedException {
+        if (!file.exists()) {
+            System.out.println("building track stats from the index...");
+            TrackStatsTable t = create(file, tid);
+            t.rebuild(btree);
+            return t;
+        }
+        TrackStatsTable t = new TrackStatsTable(Utility.openHeapFile(4, file, TD), tid);
+        SeqScan f = new SeqScan(tid, t.table.getId());
+        f.open();
+        while (f.hasNext()) {
+            Tuple row = f.next();
+            TrackStats s = t.fromTuple(row);
+            t.stats.put(s.getTrackId(), s);
+            t.rows.put(s.getTrackId(), row.getRecordId());
+        }
+        f.close();
+        return t;
+    }
+
+    private void rebuild(BTreeFile btree) throws DbException, TransactionAbortedException, IOException {
+        Map<Integer, Integer> points = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> frames = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> distinct = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> lastHash = new HashMap<Integer, Integer>();
+        DbFileIterator it = btree.iterator(tid);
+        it.setSequentialScan(true);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int hash = ((IntField) t.getField(0)).getValue();
+            int offset = ((IntField) t.getField(1)).getValue();
+            int trackId = ((IntField) t.getField(2)).getValue();
+            points.merge(trackId, 1, Integer::sum);
+            frames.merge(trackId, offset + 1, Math::max);
+            // the index is in hash order, so a track's repeats of a hash come in a run
+            Integer previous = lastHash.put(trackId, hash);
+            if (previous == null || previous != hash) {
+                distinct.merge(trackId, 1, Integer::sum);
+            }
+        }
+        it.close();
+        for (int trackId : points.keySet()) {
+            put(new TrackStats(trackId, points.get(trackId), frames.get(trackId), distinct.get(trackId)));
+        }
+        Database.getBufferPool().flushAllPages();
+    }
+
+    void put(TrackStats s) throws DbException, IOException, TransactionAbortedException {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(s.getTrackId()));
+        t.setField(1, new IntField(s.getNumPoints()));
+        t.setField(2, new IntField(s.getNumFrames()));
+        t.setField(3, new IntField(s.getNumDistinctHashes()));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        stats.put(s.getTrackId(), s);
+        rows.put(s.getTrackId(), t.getRecordId());
+    }
+
+    void remove(int trackId) throws DbException, IOException, TransactionAbortedException {
+        stats.remove(trackId);
+        RecordId rid = rows.remove(trackId);
+        if (rid == null) {
+            return;
+        }
+        Tuple t = new Tuple(TD);
+        t.setRecordId(rid);
+        Database.getBufferPool().deleteTuple(tid, t);
+    }
+
+    TrackStats get(int trackId) {
+        return stats.get(trackId);
+    }
+
+    Collection<TrackStats> all() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+
+    /**
+     * @return a live, read-only view keyed by track id
+     */
+    Map<Integer, TrackStats> asMap() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private TrackStats fromTuple(Tuple t) {
+        return new TrackStats(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue(),
+                ((IntField) t.getField(2)).getValue(), ((IntField) t.getField(3)).getValue());
+    }
+}